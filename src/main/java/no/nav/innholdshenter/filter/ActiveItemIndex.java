@@ -0,0 +1,149 @@
+package no.nav.innholdshenter.filter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.apache.commons.lang3.StringEscapeUtils.unescapeHtml4;
+
+/**
+ * Lenkemålene i markupen til et fragment, med posisjonen der klassen for aktivt menypunkt skal settes inn.
+ * Bygges én gang per versjon av fragmentet, slik at aktivt menypunkt kan markeres uten å parse markupen.
+ */
+class ActiveItemIndex {
+
+    static final String ACTIVE_CLASS = "active";
+
+    private static final Pattern ANCHOR = Pattern.compile("<a(\\s[^>]*)?>", Pattern.CASE_INSENSITIVE);
+    private static final Pattern HREF = Pattern.compile("\\shref\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)'|([^\\s>]+))", Pattern.CASE_INSENSITIVE);
+    private static final Pattern CLASS = Pattern.compile("\\sclass\\s*=\\s*(?:[\"']|([^\\s>\"']+))", Pattern.CASE_INSENSITIVE);
+
+    private final List<LinkTarget> linkTargets;
+
+    private ActiveItemIndex(List<LinkTarget> linkTargets) {
+        this.linkTargets = linkTargets;
+    }
+
+    static ActiveItemIndex build(String markup) {
+        List<LinkTarget> linkTargets = new ArrayList<>();
+        Matcher anchor = ANCHOR.matcher(markup);
+        while (anchor.find()) {
+            String attributes = anchor.group(1);
+            if (attributes == null) {
+                continue;
+            }
+            Matcher href = HREF.matcher(attributes);
+            if (!href.find()) {
+                continue;
+            }
+            String path = normalize(href.group(1) != null ? href.group(1) : href.group(2) != null ? href.group(2) : href.group(3));
+            if (path == null) {
+                continue;
+            }
+            Matcher classAttribute = CLASS.matcher(attributes);
+            if (!classAttribute.find()) {
+                linkTargets.add(new LinkTarget(path, anchor.start(1), -1, false));
+            } else if (classAttribute.group(1) != null) {
+                linkTargets.add(new LinkTarget(path, anchor.start(1) + classAttribute.start(1), anchor.start(1) + classAttribute.end(1), true));
+            } else {
+                linkTargets.add(new LinkTarget(path, anchor.start(1) + classAttribute.end(), -1, true));
+            }
+        }
+        return new ActiveItemIndex(linkTargets);
+    }
+
+    /**
+     * Setter klassen "active" på lenkene til aktivt menypunkt. Finnes ingen lenke til akkurat den siden,
+     * markeres lenkene med lengst path som siden ligger under.
+     *
+     * @param markup markupen indeksen er bygget fra
+     */
+    String markActiveItem(String markup, String activeItem) {
+        String activePath = normalize(activeItem);
+        if (activePath == null) {
+            return markup;
+        }
+        String bestMatch = null;
+        for (LinkTarget linkTarget : linkTargets) {
+            if (linkTarget.path.equals(activePath)) {
+                bestMatch = activePath;
+                break;
+            }
+            if (isParentPath(linkTarget.path, activePath) && (bestMatch == null || linkTarget.path.length() > bestMatch.length())) {
+                bestMatch = linkTarget.path;
+            }
+        }
+        if (bestMatch == null) {
+            return markup;
+        }
+
+        StringBuilder marked = new StringBuilder(markup.length() + 32);
+        int copied = 0;
+        for (LinkTarget linkTarget : linkTargets) {
+            if (linkTarget.path.equals(bestMatch)) {
+                marked.append(markup, copied, linkTarget.insertAt);
+                if (!linkTarget.hasClassAttribute) {
+                    marked.append(" class=\"" + ACTIVE_CLASS + "\"");
+                    copied = linkTarget.insertAt;
+                } else if (linkTarget.unquotedValueEnd >= 0) {
+                    marked.append("\"" + ACTIVE_CLASS + " ").append(markup, linkTarget.insertAt, linkTarget.unquotedValueEnd).append('"');
+                    copied = linkTarget.unquotedValueEnd;
+                } else {
+                    marked.append(ACTIVE_CLASS + " ");
+                    copied = linkTarget.insertAt;
+                }
+            }
+        }
+        return marked.append(markup, copied, markup.length()).toString();
+    }
+
+    private static boolean isParentPath(String parent, String path) {
+        return !"/".equals(parent) && path.length() > parent.length() && path.startsWith(parent) && path.charAt(parent.length()) == '/';
+    }
+
+    /**
+     * @return path uten protokoll, vert, query, anker og avsluttende skråstrek, med små bokstaver, eller null for lenker som ikke peker på en side
+     */
+    static String normalize(String href) {
+        if (href == null) {
+            return null;
+        }
+        String path = unescapeHtml4(href.trim());
+        if (path.isEmpty() || path.startsWith("#") || path.startsWith("javascript:") || path.startsWith("mailto:")) {
+            return null;
+        }
+        int scheme = path.indexOf("//");
+        if (scheme >= 0 && (scheme == 0 || path.charAt(scheme - 1) == ':')) {
+            int pathStart = path.indexOf('/', scheme + 2);
+            path = pathStart < 0 ? "/" : path.substring(pathStart);
+        }
+        for (char end : new char[]{'?', '#'}) {
+            int index = path.indexOf(end);
+            if (index >= 0) {
+                path = path.substring(0, index);
+            }
+        }
+        while (path.length() > 1 && path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path.isEmpty() ? null : path.toLowerCase();
+    }
+
+    private static final class LinkTarget {
+        private final String path;
+        private final int insertAt;
+        private final int unquotedValueEnd;
+        private final boolean hasClassAttribute;
+
+        /**
+         * @param unquotedValueEnd slutten av en klasseverdi uten anførselstegn, som da starter på insertAt, ellers -1
+         */
+        private LinkTarget(String path, int insertAt, int unquotedValueEnd, boolean hasClassAttribute) {
+            this.path = path;
+            this.insertAt = insertAt;
+            this.unquotedValueEnd = unquotedValueEnd;
+            this.hasClassAttribute = hasClassAttribute;
+        }
+    }
+}
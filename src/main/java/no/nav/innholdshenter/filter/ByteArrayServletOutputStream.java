@@ -4,52 +4,223 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.servlet.ServletOutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Keeps the response from server. Used by response wrapper
+ * <p>
+ * Responsen holdes i blokker fra en {@link ChunkPool}, som leveres tilbake med {@link #release()}. Med den
+ * offentlige konstruktøren allokeres blokkene i stedet for å lånes, siden den som bruker den ikke kan levere dem tilbake.
  */
 class ByteArrayServletOutputStream extends ServletOutputStream {
 
     private static final Logger logger = LoggerFactory.getLogger(ByteArrayServletOutputStream.class);
 
-    private ByteArrayOutputStream stream = null;
+    private final ChunkPool<byte[]> chunkPool;
+    private final List<byte[]> chunks = new ArrayList<>();
+    private byte[] current;
+    private int position;
+    private int size;
     private String encoding = null;
+    private PassThrough passThrough;
+    private OutputStream target;
 
     public ByteArrayServletOutputStream(String encoding) {
-        this.stream = new ByteArrayOutputStream();
+        this(encoding, null, null);
+    }
+
+    ByteArrayServletOutputStream(String encoding, ChunkPool<byte[]> chunkPool) {
+        this(encoding, chunkPool, null);
+    }
+
+    /**
+     * @param chunkPool   blokkene lånes herfra, eller allokeres hvis den er null
+     * @param passThrough spørres ved første skriving om responsen skal skrives videre i stedet for å buffres
+     */
+    ByteArrayServletOutputStream(String encoding, ChunkPool<byte[]> chunkPool, PassThrough passThrough) {
         this.encoding = encoding;
+        this.chunkPool = chunkPool;
+        this.passThrough = passThrough;
     }
 
-    public ByteArrayOutputStream getByteArrayOutputStream() {
-        return stream;
+    @Override
+    public void write(int b) throws IOException {
+        if (decideOnFirstWrite()) {
+            target.write(b);
+            return;
+        }
+        if (current == null || position == current.length) {
+            nextChunk();
+        }
+        current[position++] = (byte) b;
+        size++;
     }
 
     @Override
-    public void write(int b) {
-        stream.write(b);
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (decideOnFirstWrite()) {
+            target.write(b, off, len);
+            return;
+        }
+        while (len > 0) {
+            if (current == null || position == current.length) {
+                nextChunk();
+            }
+            int count = Math.min(len, current.length - position);
+            System.arraycopy(b, off, current, position, count);
+            position += count;
+            size += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    private void nextChunk() {
+        current = chunkPool != null ? chunkPool.borrow() : new byte[ChunkPool.DEFAULT_CHUNK_SIZE];
+        chunks.add(current);
+        position = 0;
+    }
+
+    /**
+     * @return true hvis responsen skrives rett videre
+     */
+    boolean isPassingThrough() {
+        return target != null;
+    }
+
+    private boolean decideOnFirstWrite() throws IOException {
+        if (passThrough != null) {
+            target = passThrough.target();
+            passThrough = null;
+        }
+        return target != null;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Skriver det som er buffret videre uten å kopiere det.
+     */
+    void writeTo(OutputStream out) throws IOException {
+        int remaining = size;
+        for (byte[] chunk : chunks) {
+            int count = Math.min(remaining, chunk.length);
+            out.write(chunk, 0, count);
+            remaining -= count;
+        }
+    }
+
+    /**
+     * Skriver bytene fra og med from til to videre uten å kopiere dem.
+     */
+    void writeTo(OutputStream out, int from, int to) throws IOException {
+        int chunkStart = 0;
+        for (byte[] chunk : chunks) {
+            int start = Math.max(from, chunkStart);
+            int end = Math.min(to, chunkStart + chunk.length);
+            if (start < end) {
+                out.write(chunk, start - chunkStart, end - start);
+            }
+            chunkStart += chunk.length;
+            if (chunkStart >= to) {
+                break;
+            }
+        }
+    }
+
+    byte[] toByteArray() {
+        byte[] bytes = new byte[size];
+        int offset = 0;
+        for (byte[] chunk : chunks) {
+            int count = Math.min(size - offset, chunk.length);
+            System.arraycopy(chunk, 0, bytes, offset, count);
+            offset += count;
+        }
+        return bytes;
+    }
+
+    /**
+     * Leverer blokkene tilbake til poolen. Det som var buffret er borte etterpå.
+     */
+    void release() {
+        if (chunkPool != null) {
+            for (byte[] chunk : chunks) {
+                chunkPool.giveBack(chunk);
+            }
+        }
+        chunks.clear();
+        current = null;
+        position = 0;
+        size = 0;
     }
 
     @Override
     public void close() throws IOException {
-        stream.close();
     }
 
     @Override
     public void flush() throws IOException {
-        stream.flush();
+        if (target != null) {
+            target.flush();
+        }
     }
 
     @Override
     public String toString() {
         try {
-            return stream.toString(encoding);
+            if (chunks.size() <= 1) {
+                return size == 0 ? "" : new String(chunks.get(0), 0, size, encoding);
+            }
+            StringBuilder result = new StringBuilder(size);
+            Reader reader = new InputStreamReader(new ChunkInputStream(), encoding);
+            char[] buffer = new char[ChunkPool.DEFAULT_CHUNK_SIZE];
+            for (int read = reader.read(buffer); read >= 0; read = reader.read(buffer)) {
+                result.append(buffer, 0, read);
+            }
+            return result.toString();
         } catch (UnsupportedEncodingException e) {
             logger.error("Unable to convert stream to string. Unsupported encoding ({}) used in request: {}", encoding, e.getMessage());
+        } catch (IOException e) {
+            logger.error("Unable to convert stream to string: {}", e.getMessage());
         }
 
         return "";
     }
+
+    private class ChunkInputStream extends InputStream {
+        private int chunk;
+        private int offset;
+        private int remaining = size;
+
+        @Override
+        public int read() {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (remaining == 0) {
+                return -1;
+            }
+            if (offset == chunks.get(chunk).length) {
+                chunk++;
+                offset = 0;
+            }
+            int count = Math.min(Math.min(len, remaining), chunks.get(chunk).length - offset);
+            System.arraycopy(chunks.get(chunk), offset, b, off, count);
+            offset += count;
+            remaining -= count;
+            return count;
+        }
+    }
 }
@@ -0,0 +1,164 @@
+package no.nav.innholdshenter.filter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holder det applikasjonen skriver med getWriter() som tegn, i blokker fra en {@link ChunkPool}, slik at
+ * responsen ikke kodes til bytes og dekodes igjen før den dekoreres. Blokkene leveres tilbake med {@link #release()}.
+ */
+class CharChunkWriter extends Writer {
+
+    private final ChunkPool<char[]> chunkPool;
+    private final String encoding;
+    private final List<char[]> chunks = new ArrayList<>();
+    private char[] current;
+    private int position;
+    private int size;
+    private PassThrough passThrough;
+    private Writer target;
+
+    /**
+     * @param encoding    tegnsettet responsen skal kodes med
+     * @param passThrough spørres ved første skriving om responsen skal skrives videre i stedet for å buffres
+     */
+    CharChunkWriter(String encoding, ChunkPool<char[]> chunkPool, PassThrough passThrough) {
+        this.encoding = encoding;
+        this.chunkPool = chunkPool;
+        this.passThrough = passThrough;
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        if (decideOnFirstWrite()) {
+            target.write(c);
+            return;
+        }
+        if (current == null || position == current.length) {
+            nextChunk();
+        }
+        current[position++] = (char) c;
+        size++;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        if (decideOnFirstWrite()) {
+            target.write(cbuf, off, len);
+            return;
+        }
+        while (len > 0) {
+            int count = reserve(len);
+            System.arraycopy(cbuf, off, current, position, count);
+            position += count;
+            size += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        if (decideOnFirstWrite()) {
+            target.write(str, off, len);
+            return;
+        }
+        while (len > 0) {
+            int count = reserve(len);
+            str.getChars(off, off + count, current, position);
+            position += count;
+            size += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    private int reserve(int len) {
+        if (current == null || position == current.length) {
+            nextChunk();
+        }
+        return Math.min(len, current.length - position);
+    }
+
+    private void nextChunk() {
+        current = chunkPool.borrow();
+        chunks.add(current);
+        position = 0;
+    }
+
+    private boolean decideOnFirstWrite() throws IOException {
+        if (passThrough != null) {
+            OutputStream out = passThrough.target();
+            passThrough = null;
+            if (out != null) {
+                target = new OutputStreamWriter(out, encoding);
+            }
+        }
+        return target != null;
+    }
+
+    /**
+     * @return true hvis responsen skrives rett videre
+     */
+    boolean isPassingThrough() {
+        return target != null;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (target != null) {
+            target.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    /**
+     * Koder tegnene én gang, rett inn i out.
+     */
+    void writeTo(OutputStream out) throws IOException {
+        CharEncoder charEncoder = new CharEncoder(encoding, out);
+        int remaining = size;
+        for (char[] chunk : chunks) {
+            int count = Math.min(remaining, chunk.length);
+            charEncoder.write(chunk, 0, count);
+            remaining -= count;
+        }
+        charEncoder.finish();
+    }
+
+    /**
+     * Leverer blokkene tilbake til poolen. Det som var buffret er borte etterpå.
+     */
+    void release() {
+        for (char[] chunk : chunks) {
+            chunkPool.giveBack(chunk);
+        }
+        chunks.clear();
+        current = null;
+        position = 0;
+        size = 0;
+    }
+
+    @Override
+    public String toString() {
+        if (chunks.size() <= 1) {
+            return size == 0 ? "" : new String(chunks.get(0), 0, size);
+        }
+        StringBuilder result = new StringBuilder(size);
+        int remaining = size;
+        for (char[] chunk : chunks) {
+            int count = Math.min(remaining, chunk.length);
+            result.append(chunk, 0, count);
+            remaining -= count;
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,168 @@
+package no.nav.innholdshenter.filter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Koder tegn rett inn i en OutputStream med en CharsetEncoder og buffere som lånes fra en liten pool og leveres
+ * tilbake i {@link #finish()}. Tegn som ikke kan kodes erstattes, som i {@link String#getBytes(String)}.
+ */
+final class CharEncoder {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_POOLED = 64;
+    private static final BlockingQueue<Buffers> POOL = new ArrayBlockingQueue<>(MAX_POOLED);
+
+    private final Buffers buffers;
+    private final CharsetEncoder encoder;
+    private final OutputStream out;
+    private final ByteBuffer bytes;
+    private final char[] pending = new char[2];
+    private boolean hasPending;
+    private boolean finished;
+
+    /**
+     * Kan ikke brukes etter {@link #finish()}, siden bufferne da kan være lånt ut til en annen CharEncoder.
+     */
+    CharEncoder(String charsetName, OutputStream out) throws UnsupportedEncodingException {
+        Buffers pooled = POOL.poll();
+        this.buffers = pooled != null ? pooled : new Buffers();
+        try {
+            this.encoder = buffers.encoder(charsetName);
+        } catch (UnsupportedEncodingException e) {
+            POOL.offer(buffers);
+            throw e;
+        }
+        this.out = out;
+        this.bytes = buffers.bytes;
+        this.bytes.clear();
+    }
+
+    /**
+     * Koder hele teksten til out.
+     */
+    static void encode(CharSequence text, String charsetName, OutputStream out) throws IOException {
+        CharEncoder charEncoder = new CharEncoder(charsetName, out);
+        charEncoder.write(text);
+        charEncoder.finish();
+    }
+
+    void write(CharSequence text) throws IOException {
+        checkNotFinished();
+        if (text instanceof String) {
+            write((String) text, 0, text.length());
+        } else {
+            encode(CharBuffer.wrap(text), false);
+        }
+    }
+
+    void write(String text, int start, int end) throws IOException {
+        checkNotFinished();
+        char[] buffer = buffers.chars;
+        for (int from = start; from < end; from += buffer.length) {
+            int to = Math.min(end, from + buffer.length);
+            text.getChars(from, to, buffer, 0);
+            write(buffer, 0, to - from);
+        }
+    }
+
+    void write(char[] chars, int off, int len) throws IOException {
+        checkNotFinished();
+        if (len == 0) {
+            return;
+        }
+        if (hasPending) {
+            hasPending = false;
+            pending[1] = chars[off];
+            encode(CharBuffer.wrap(pending, 0, 2), false);
+            off++;
+            len--;
+        }
+        encode(CharBuffer.wrap(chars, off, len), false);
+    }
+
+    void finish() throws IOException {
+        checkNotFinished();
+        finished = true;
+        try {
+            CharBuffer rest = hasPending ? CharBuffer.wrap(pending, 0, 1) : CharBuffer.allocate(0);
+            hasPending = false;
+            encode(rest, true);
+            while (encoder.flush(bytes).isOverflow()) {
+                drain();
+            }
+            drain();
+        } finally {
+            POOL.offer(buffers);
+        }
+    }
+
+    private void checkNotFinished() {
+        if (finished) {
+            throw new IllegalStateException("CharEncoder er allerede ferdig");
+        }
+    }
+
+    /**
+     * Slipper bufferne og encoderne i poolen, når filteret tas ned.
+     */
+    static void clearPool() {
+        POOL.clear();
+    }
+
+    private void encode(CharBuffer in, boolean endOfInput) throws IOException {
+        while (true) {
+            CoderResult result = encoder.encode(in, bytes, endOfInput);
+            if (result.isOverflow()) {
+                drain();
+            } else {
+                break;
+            }
+        }
+        if (in.hasRemaining()) {
+            pending[0] = in.get();
+            hasPending = true;
+        }
+    }
+
+    private void drain() throws IOException {
+        bytes.flip();
+        out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+        bytes.clear();
+    }
+
+    /**
+     * Encodere per tegnsett og buffere som brukes av én CharEncoder om gangen.
+     */
+    private static final class Buffers {
+        private final Map<String, CharsetEncoder> encoders = new HashMap<>();
+        private final char[] chars = new char[BUFFER_SIZE];
+        private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+
+        private CharsetEncoder encoder(String charsetName) throws UnsupportedEncodingException {
+            CharsetEncoder encoder = encoders.get(charsetName);
+            if (encoder == null) {
+                try {
+                    encoder = Charset.forName(charsetName).newEncoder()
+                            .onMalformedInput(CodingErrorAction.REPLACE)
+                            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+                } catch (IllegalArgumentException e) {
+                    throw new UnsupportedEncodingException(charsetName);
+                }
+                encoders.put(charsetName, encoder);
+            }
+            return encoder.reset();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package no.nav.innholdshenter.filter;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+
+/**
+ * Gjenbrukbare blokker med fast størrelse til buffring av responser, som byte[] eller char[]. Blokker som
+ * leveres tilbake når poolen er full, overlates til GC.
+ */
+class ChunkPool<T> {
+
+    static final int DEFAULT_CHUNK_SIZE = 8 * 1024;
+    static final int DEFAULT_MAX_POOLED_CHUNKS = 512;
+    static final ChunkPool<byte[]> BYTES = new ChunkPool<>(byte[]::new, DEFAULT_CHUNK_SIZE, DEFAULT_MAX_POOLED_CHUNKS);
+    static final ChunkPool<char[]> CHARS = new ChunkPool<>(char[]::new, DEFAULT_CHUNK_SIZE, DEFAULT_MAX_POOLED_CHUNKS);
+
+    private final IntFunction<T> factory;
+    private final int chunkSize;
+    private final BlockingQueue<T> pooled;
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final AtomicLong created = new AtomicLong();
+
+    ChunkPool(IntFunction<T> factory, int chunkSize, int maxPooledChunks) {
+        this.factory = factory;
+        this.chunkSize = chunkSize;
+        this.pooled = new ArrayBlockingQueue<>(maxPooledChunks);
+    }
+
+    T borrow() {
+        inUse.incrementAndGet();
+        T chunk = pooled.poll();
+        if (chunk == null) {
+            created.incrementAndGet();
+            chunk = factory.apply(chunkSize);
+        }
+        return chunk;
+    }
+
+    void giveBack(T chunk) {
+        inUse.decrementAndGet();
+        pooled.offer(chunk);
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return blokker som ligger klare i poolen
+     */
+    int getAvailableChunks() {
+        return pooled.size();
+    }
+
+    /**
+     * @return blokker som er lånt ut og ikke levert tilbake
+     */
+    int getChunksInUse() {
+        return inUse.get();
+    }
+
+    /**
+     * @return blokker som er allokert fordi poolen var tom
+     */
+    long getCreatedChunks() {
+        return created.get();
+    }
+}
@@ -0,0 +1,128 @@
+package no.nav.innholdshenter.filter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hvor lenge en forespørsel kan vente på fragmentene. Kommer de ikke innen budsjettet, brukes fragmentene sist
+ * hentet fra samme URL, og finnes ingen, dekoreres siden uten fragmenter. Hentingen fortsetter i bakgrunnen,
+ * slik at cachen er oppdatert til neste forespørsel. Uten budsjett (0) venter forespørselen så lenge hentingen tar.
+ */
+class DecorationBudget {
+
+    private static final Logger logger = LoggerFactory.getLogger(DecorationBudget.class);
+
+    private final long budgetMillis;
+    private final ExecutorService executor;
+    private final AtomicLong withinBudget = new AtomicLong();
+    private final AtomicLong withLastKnownFragments = new AtomicLong();
+    private final AtomicLong withoutFragments = new AtomicLong();
+
+    /**
+     * @param executor tråder fragmentene hentes i når de ikke allerede hentes på forhånd, null uten budsjett
+     */
+    DecorationBudget(long budgetMillis, ExecutorService executor) {
+        this.budgetMillis = budgetMillis;
+        this.executor = executor;
+    }
+
+    /**
+     * @param prefetched fragmentene hvis de allerede hentes fra url, ellers null
+     * @param timings    får vite hvor fragmentene kom fra
+     */
+    HtmlFragments fetch(String url, Future<HtmlFragments> prefetched, FragmentFetcher fragmentFetcher, FragmentCache fragmentCache,
+                        DecorationTimings timings) {
+        HtmlFragments cachedFragments = timings.isEnabled() ? fragmentCache.getLastKnownFragments(url) : null;
+        if (budgetMillis <= 0) {
+            HtmlFragments htmlFragments = prefetched == null ? fragmentFetcher.fetchHtmlFragments(url) : await(prefetched, 0);
+            if (htmlFragments != null) {
+                return withinBudget(htmlFragments, cachedFragments, timings);
+            }
+            return degrade(url, fragmentCache, timings);
+        }
+
+        Future<HtmlFragments> fragments = prefetched;
+        if (fragments == null) {
+            try {
+                fragments = executor.submit(() -> fragmentFetcher.fetchHtmlFragments(url));
+            } catch (RejectedExecutionException e) {
+                logger.warn("Alle trådene som henter fragmenter er opptatt, venter ikke på {}", url);
+                return degrade(url, fragmentCache, timings);
+            }
+        }
+
+        HtmlFragments htmlFragments = await(fragments, budgetMillis);
+        if (htmlFragments != null) {
+            return withinBudget(htmlFragments, cachedFragments, timings);
+        }
+        logger.warn("Fikk ikke fragmentene fra {} innen {} ms", url, budgetMillis);
+        return degrade(url, fragmentCache, timings);
+    }
+
+    /**
+     * @param cachedFragments fragmentene som lå i cachen før hentingen
+     */
+    private HtmlFragments withinBudget(HtmlFragments htmlFragments, HtmlFragments cachedFragments, DecorationTimings timings) {
+        withinBudget.incrementAndGet();
+        timings.setFetchResult(htmlFragments == cachedFragments ? DecorationTimings.FetchResult.HIT : DecorationTimings.FetchResult.MISS);
+        return htmlFragments;
+    }
+
+    /**
+     * @return null hvis fragmentene ikke kom innen timeoutMillis, hentingen ble avbrutt, eller ventingen ble avbrutt
+     */
+    private static HtmlFragments await(Future<HtmlFragments> fragments, long timeoutMillis) {
+        try {
+            return timeoutMillis > 0 ? fragments.get(timeoutMillis, TimeUnit.MILLISECONDS) : fragments.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (TimeoutException | CancellationException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private HtmlFragments degrade(String url, FragmentCache fragmentCache, DecorationTimings timings) {
+        HtmlFragments lastKnownFragments = fragmentCache.getLastKnownFragments(url);
+        if (lastKnownFragments != null) {
+            withLastKnownFragments.incrementAndGet();
+            timings.setFetchResult(DecorationTimings.FetchResult.STALE);
+            return lastKnownFragments;
+        }
+        withoutFragments.incrementAndGet();
+        timings.setFetchResult(DecorationTimings.FetchResult.NONE);
+        return HtmlFragments.EMPTY;
+    }
+
+    void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    long getWithinBudget() {
+        return withinBudget.get();
+    }
+
+    long getWithLastKnownFragments() {
+        return withLastKnownFragments.get();
+    }
+
+    long getWithoutFragments() {
+        return withoutFragments.get();
+    }
+}
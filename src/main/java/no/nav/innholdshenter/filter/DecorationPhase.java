@@ -0,0 +1,45 @@
+package no.nav.innholdshenter.filter;
+
+/**
+ * Fasene i en dekorert forespørsel som DecoratorFilter måler, med navnet de har i Server-Timing.
+ */
+public enum DecorationPhase {
+    /**
+     * Filterkjeden, altså applikasjonen.
+     */
+    APPLICATION("app"),
+    /**
+     * Dekoding av det applikasjonen skrev til en streng.
+     */
+    DECODE("decode"),
+    /**
+     * Oppbygging av URL-en til fragmentene.
+     */
+    URL("url"),
+    /**
+     * Venting på fragmentene, fra cache eller Enonic.
+     */
+    FETCH("fetch"),
+    /**
+     * Innsetting av fragmentene i siden.
+     */
+    MERGE("merge"),
+    /**
+     * Koding, komprimering og skriving av siden til klienten.
+     */
+    WRITE("write"),
+    /**
+     * Hele forespørselen gjennom filteret.
+     */
+    TOTAL("total");
+
+    private final String serverTimingName;
+
+    DecorationPhase(String serverTimingName) {
+        this.serverTimingName = serverTimingName;
+    }
+
+    public String getServerTimingName() {
+        return serverTimingName;
+    }
+}
@@ -0,0 +1,107 @@
+package no.nav.innholdshenter.filter;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogrammer over tiden i hver {@link DecorationPhase} for alle forespørsler siden oppstart, og hvor ofte
+ * fragmentene kom fra hver kilde. Bøtte i teller tider fra 2^(i-1) til 2^i mikrosekunder, så persentilene er
+ * øvre grense i bøtten, ikke eksakte.
+ */
+public class DecorationTimingHistograms implements DecorationTimingListener {
+
+    private static final int BUCKETS = 40;
+
+    private final Map<DecorationPhase, AtomicLongArray> buckets = new EnumMap<>(DecorationPhase.class);
+    private final Map<DecorationPhase, AtomicLong> totalNanos = new EnumMap<>(DecorationPhase.class);
+    private final Map<DecorationTimings.FetchResult, AtomicLong> fetchResults = new EnumMap<>(DecorationTimings.FetchResult.class);
+
+    public DecorationTimingHistograms() {
+        for (DecorationPhase phase : DecorationPhase.values()) {
+            buckets.put(phase, new AtomicLongArray(BUCKETS));
+            totalNanos.put(phase, new AtomicLong());
+        }
+        for (DecorationTimings.FetchResult fetchResult : DecorationTimings.FetchResult.values()) {
+            fetchResults.put(fetchResult, new AtomicLong());
+        }
+    }
+
+    @Override
+    public void decorationTimed(DecorationTimings timings) {
+        for (DecorationPhase phase : DecorationPhase.values()) {
+            long nanos = timings.getNanos(phase);
+            if (nanos >= 0) {
+                buckets.get(phase).incrementAndGet(bucket(nanos / 1000));
+                totalNanos.get(phase).addAndGet(nanos);
+            }
+        }
+        if (timings.getFetchResult() != null) {
+            fetchResults.get(timings.getFetchResult()).incrementAndGet();
+        }
+    }
+
+    private static int bucket(long micros) {
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    /**
+     * @return antall forespørsler der fasen er målt
+     */
+    public long getCount(DecorationPhase phase) {
+        AtomicLongArray phaseBuckets = buckets.get(phase);
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += phaseBuckets.get(i);
+        }
+        return count;
+    }
+
+    public double getMeanMillis(DecorationPhase phase) {
+        long count = getCount(phase);
+        return count == 0 ? 0 : totalNanos.get(phase).get() / 1e6 / count;
+    }
+
+    /**
+     * @param percentile mellom 0 og 100
+     * @return øvre grense i millisekunder for bøtten persentilen ligger i, 0 hvis fasen ikke er målt
+     */
+    public double getPercentileMillis(DecorationPhase phase, double percentile) {
+        AtomicLongArray phaseBuckets = buckets.get(phase);
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = phaseBuckets.get(i);
+            count += counts[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return (1L << i) / 1000.0;
+            }
+        }
+        return (1L << (BUCKETS - 1)) / 1000.0;
+    }
+
+    /**
+     * @return antall forespørsler i hver bøtte, der bøtte i teller tider under 2^i mikrosekunder
+     */
+    public long[] getBucketCounts(DecorationPhase phase) {
+        AtomicLongArray phaseBuckets = buckets.get(phase);
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = phaseBuckets.get(i);
+        }
+        return counts;
+    }
+
+    public long getFetchResultCount(DecorationTimings.FetchResult fetchResult) {
+        return fetchResults.get(fetchResult).get();
+    }
+}
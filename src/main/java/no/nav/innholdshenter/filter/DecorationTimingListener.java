@@ -0,0 +1,10 @@
+package no.nav.innholdshenter.filter;
+
+/**
+ * Får målingene for hver forespørsel DecoratorFilter har behandlet, når forespørselen er ferdig. Kalles fra tråden
+ * som fullførte forespørselen, og må derfor være trådsikker og rask.
+ */
+public interface DecorationTimingListener {
+
+    void decorationTimed(DecorationTimings timings);
+}
@@ -0,0 +1,144 @@
+package no.nav.innholdshenter.filter;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.http.HttpServletRequest;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tiden én forespørsel brukte i hver {@link DecorationPhase}, og hvor fragmentene kom fra. Faser som ikke ble
+ * kjørt, for eksempel henting for sider som ikke dekoreres, er ikke målt.
+ */
+public final class DecorationTimings {
+
+    /**
+     * Hvor fragmentene kom fra: ferdig splittet fra cachen, nylig hentet og splittet, sist hentede fordi
+     * budsjettet var brukt opp, eller ingen.
+     */
+    public enum FetchResult {
+        HIT, MISS, STALE, NONE
+    }
+
+    static final DecorationTimings DISABLED = new DecorationTimings(null, false);
+
+    private static final String ATTRIBUTE = DecorationTimings.class.getName();
+    private static final long NOT_MEASURED = -1;
+
+    private final String requestUri;
+    private final boolean enabled;
+    private final long startNanos;
+    private final long[] nanos = new long[DecorationPhase.values().length];
+    private final AtomicBoolean finished = new AtomicBoolean();
+    private volatile FetchResult fetchResult;
+
+    private DecorationTimings(String requestUri, boolean enabled) {
+        this.requestUri = requestUri;
+        this.enabled = enabled;
+        this.startNanos = enabled ? System.nanoTime() : 0;
+        Arrays.fill(nanos, NOT_MEASURED);
+    }
+
+    /**
+     * Begynner å måle forespørselen, og legger målingene på den slik at {@link #of(ServletRequest)} finner dem.
+     */
+    static DecorationTimings start(HttpServletRequest request) {
+        DecorationTimings timings = new DecorationTimings(request.getRequestURI(), true);
+        request.setAttribute(ATTRIBUTE, timings);
+        return timings;
+    }
+
+    /**
+     * @return målingene for forespørselen, eller {@link #DISABLED} som ikke måler noe
+     */
+    static DecorationTimings of(ServletRequest request) {
+        Object timings = request.getAttribute(ATTRIBUTE);
+        return timings instanceof DecorationTimings ? (DecorationTimings) timings : DISABLED;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    long begin() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Legger tiden siden begin til fasen. Faser som kjøres flere ganger summeres.
+     */
+    void end(DecorationPhase phase, long begin) {
+        if (enabled) {
+            long elapsed = System.nanoTime() - begin;
+            int index = phase.ordinal();
+            synchronized (nanos) {
+                nanos[index] = nanos[index] == NOT_MEASURED ? elapsed : nanos[index] + elapsed;
+            }
+        }
+    }
+
+    void setFetchResult(FetchResult fetchResult) {
+        if (enabled) {
+            this.fetchResult = fetchResult;
+        }
+    }
+
+    /**
+     * Måler {@link DecorationPhase#TOTAL}.
+     *
+     * @return true første gang, false hvis målingene allerede er avsluttet eller ikke er slått på
+     */
+    boolean finish() {
+        if (!enabled || !finished.compareAndSet(false, true)) {
+            return false;
+        }
+        end(DecorationPhase.TOTAL, startNanos);
+        return true;
+    }
+
+    public String getRequestUri() {
+        return requestUri;
+    }
+
+    public boolean isMeasured(DecorationPhase phase) {
+        return getNanos(phase) != NOT_MEASURED;
+    }
+
+    /**
+     * @return tiden i fasen, eller -1 hvis den ikke er målt
+     */
+    public long getNanos(DecorationPhase phase) {
+        synchronized (nanos) {
+            return nanos[phase.ordinal()];
+        }
+    }
+
+    /**
+     * @return hvor fragmentene kom fra, eller null hvis det ikke ble hentet fragmenter
+     */
+    public FetchResult getFetchResult() {
+        return fetchResult;
+    }
+
+    /**
+     * @return de målte fasene som verdi til en Server-Timing-header, for eksempel app;dur=12.3, fetch;dur=1.0;desc=hit
+     */
+    public String toServerTiming() {
+        StringBuilder serverTiming = new StringBuilder();
+        for (DecorationPhase phase : DecorationPhase.values()) {
+            long phaseNanos = getNanos(phase);
+            if (phaseNanos == NOT_MEASURED) {
+                continue;
+            }
+            if (serverTiming.length() > 0) {
+                serverTiming.append(", ");
+            }
+            serverTiming.append(phase.getServerTimingName())
+                    .append(";dur=").append(String.format(Locale.ROOT, "%.1f", phaseNanos / 1e6));
+            if (phase == DecorationPhase.FETCH && fetchResult != null) {
+                serverTiming.append(";desc=").append(fetchResult.name().toLowerCase(Locale.ROOT));
+            }
+        }
+        return serverTiming.toString();
+    }
+}
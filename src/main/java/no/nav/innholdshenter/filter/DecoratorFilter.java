@@ -2,9 +2,7 @@ package no.nav.innholdshenter.filter;
 
 import net.sf.ehcache.CacheException;
 import no.nav.innholdshenter.common.ContentRetriever;
-import org.apache.commons.lang3.StringUtils;
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
+import no.nav.innholdshenter.tools.RouteMatcher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -13,11 +11,25 @@ import javax.servlet.*;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.util.Arrays.asList;
 import static no.nav.innholdshenter.filter.DecoratorFilterUtils.*;
@@ -29,6 +41,8 @@ public class DecoratorFilter implements Filter {
 
     public static final String ALREADY_DECORATED_HEADER = "X-NAV-decorator";
     private static final List<String> DEFAULT_NO_DECORATE_PATTERNS = asList(".*isAlive.*");
+    private static final int EXECUTOR_QUEUE_SIZE = 100;
+    private static final Set<String> NOT_CACHED_HEADERS = new HashSet<>(asList("content-length", "content-type", "set-cookie", "date", "etag"));
 
     private ContentRetriever contentRetriever;
     private List<String> fragmentNames;
@@ -37,11 +51,29 @@ public class DecoratorFilter implements Filter {
     private String applicationName;
     private String subMenuPath;
     private boolean shouldIncludeActiveItem;
+    private boolean shouldMarkActiveItemLocally;
     private List<String> noDecoratePatterns;
     private List<String> noSubmenuPatterns;
     private Map<String, String> excludeHeaders;
     private ExtendedConfiguration extendedConfiguration;
     private Map<String, String> additionalOptions;
+    private boolean streamingDecoration;
+    private boolean shouldAddEtag;
+    private boolean shouldGzipOutput;
+    private boolean shouldAddPreloadLinks;
+    private boolean shouldAddServerTiming;
+    private final List<DecorationTimingListener> timingListeners = new CopyOnWriteArrayList<>();
+    private DecorationTimingHistograms timingHistograms;
+    private boolean shouldFetchOnlyFragmentsInPage;
+    private final FragmentCache fragmentCache = new FragmentCache();
+    private ExecutorService prefetchExecutor;
+    private List<String> prefetchPatterns = new ArrayList<>();
+    private final PrefetchRoutes prefetchRoutes = new PrefetchRoutes();
+    private ExecutorService asyncExecutor;
+    private long asyncTimeoutMillis;
+    private DecorationBudget decorationBudget = new DecorationBudget(0, null);
+    private List<String> outputCachePatterns = new ArrayList<>();
+    private OutputCache outputCache;
 
     @Deprecated
     /* Vi tar bort denne for A tvinge at feltene settes i konstruktoeren. Da kan vi dra ut hele Spring fra prosjeketet */
@@ -109,33 +141,515 @@ public class DecoratorFilter implements Filter {
         HttpServletRequest request = (HttpServletRequest) servletRequest;
         HttpServletResponse response = (HttpServletResponse) servletResponse;
 
-        DecoratorResponseWrapper responseWrapper = new DecoratorResponseWrapper(response);
+        DecorationTimings timings = startTimings(request);
+        FragmentPrefetch prefetch = null;
+        try {
+            String outputCacheKey = outputCacheKey(request);
+            if (outputCacheKey != null && writeCachedPage(outputCacheKey, request, response)) {
+                logger.debug("Wrote cached decorated page for request: {}", request.getRequestURI());
+                return;
+            }
+
+            prefetch = startPrefetch(request);
+            if (streamingDecoration && shouldDecorateRequest(request)) {
+                doFilterStreaming(request, response, chain, prefetch);
+            } else {
+                doFilterBuffered(request, response, chain, prefetch);
+            }
+        } finally {
+            if (!(asyncExecutor != null && request.isAsyncStarted())) {
+                if (prefetch != null) {
+                    prefetch.cancel();
+                }
+                finishTimings(timings);
+            }
+        }
+    }
+
+    /**
+     * @return målingene for forespørselen, eller {@link DecorationTimings#DISABLED} hvis ingen bruker dem eller
+     * forespørselen allerede måles av et ytre kall til filteret
+     */
+    private DecorationTimings startTimings(HttpServletRequest request) {
+        if ((timingListeners.isEmpty() && !shouldAddServerTiming) || DecorationTimings.of(request).isEnabled()) {
+            return DecorationTimings.DISABLED;
+        }
+        return DecorationTimings.start(request);
+    }
+
+    private void finishTimings(DecorationTimings timings) {
+        if (!timings.finish()) {
+            return;
+        }
+        for (DecorationTimingListener timingListener : timingListeners) {
+            try {
+                timingListener.decorationTimed(timings);
+            } catch (RuntimeException e) {
+                logger.warn("Lytteren på målingene av dekoreringen feilet", e);
+            }
+        }
+    }
+
+    private void addServerTiming(HttpServletRequest request, HttpServletResponse response) {
+        if (shouldAddServerTiming) {
+            DecorationTimings timings = DecorationTimings.of(request);
+            if (timings.isEnabled()) {
+                response.setHeader("Server-Timing", timings.toServerTiming());
+            }
+        }
+    }
+
+    private void doFilterBuffered(HttpServletRequest request, HttpServletResponse response, FilterChain chain, FragmentPrefetch prefetch) throws IOException, ServletException {
+        DecoratorResponseWrapper responseWrapper = new DecoratorResponseWrapper(response, this::shouldPassThrough);
+        DecorationTimings timings = DecorationTimings.of(request);
+        try {
+            long application = timings.begin();
+            chain.doFilter(request, responseWrapper);
+            responseWrapper.flushBuffer();
+            timings.end(DecorationPhase.APPLICATION, application);
+            if (responseWrapper.isPassingThrough()) {
+                logger.debug("Response passed through undecorated for request: {}", request.getRequestURI());
+                return;
+            }
+            writeBufferedResponse(request, response, responseWrapper, prefetch);
+        } finally {
+            responseWrapper.release();
+        }
+    }
+
+    /**
+     * Begynner å hente fragmentene før applikasjonen har laget responsen, med URL-en slik den blir uten meta-tagger.
+     * Bare forespørsler som ser ut til å gjelde en side hentes på forhånd, slik at JSON, bilder og redirects ikke
+     * gir kall mot Enonic, og ikke URL-er der meta-taggene gang på gang har gitt en annen fragment-URL.
+     */
+    private FragmentPrefetch startPrefetch(HttpServletRequest request) {
+        if (prefetchExecutor == null || !shouldDecorateRequest(request) || !isPageRequest(request)
+                || !prefetchRoutes.shouldPrefetch(request.getRequestURI())) {
+            return null;
+        }
+        return FragmentPrefetch.start(prefetchExecutor, createFragmentFetcher(new DecoratorRequestContext(request, ""), fragmentNames),
+                prefetchRoutes, request.getRequestURI());
+    }
+
+    /**
+     * Responser som uansett ikke skal dekoreres skrives rett til klienten. Innholdstype og status må være satt
+     * før applikasjonen begynner å skrive; ellers buffres responsen som før.
+     */
+    private boolean shouldPassThrough(HttpServletResponse response) {
+        String contentType = response.getContentType();
+        return (contentType != null && !shouldHandleContentType(contentType)) || !hasAppropriateStatusCode(response.getStatus());
+    }
+
+    private void doFilterStreaming(HttpServletRequest request, HttpServletResponse response, FilterChain chain, FragmentPrefetch prefetch) throws IOException, ServletException {
+        StreamingDecoratorResponseWrapper responseWrapper = new StreamingDecoratorResponseWrapper(response, this::shouldPassThrough,
+                head -> resolveStreamingDecoration(head, request, response, prefetch));
+        DecorationTimings timings = DecorationTimings.of(request);
+        long application = timings.begin();
         chain.doFilter(request, responseWrapper);
-        responseWrapper.flushBuffer();
-        String originalResponseString = responseWrapper.getOutputAsString();
+        timings.end(DecorationPhase.APPLICATION, application);
+        if (!responseWrapper.finish()) {
+            logger.debug("Falling back to buffered decoration for request: {}", request.getRequestURI());
+            writeBufferedResponse(request, response, responseWrapper, prefetch);
+        }
+    }
+
+    private void writeBufferedResponse(HttpServletRequest request, HttpServletResponse response, DecoratorResponseWrapper responseWrapper,
+                                       FragmentPrefetch prefetch) throws IOException {
+        if (!shouldHandleContentType(responseWrapper.getContentType()) || !hasAppropriateStatusCode(response.getStatus())) {
+            logger.debug("Should not handle content type: {}, or status code: {}.", responseWrapper.getContentType(), response.getStatus());
+            writeOriginalOutputToResponse(responseWrapper, response);
+            return;
+        }
 
-        if (!shouldHandleContentType(responseWrapper.getContentType()) || !hasAppropriateStatusCode(response.getStatus()) || isEmpty(originalResponseString)) {
-            logger.debug("Should not handle content type: {}, status code: {}, or original response string is empty.", responseWrapper.getContentType(), response.getStatus());
+        DecorationTimings timings = DecorationTimings.of(request);
+        long decode = timings.begin();
+        String originalResponseString = responseWrapper.getOutputAsString();
+        timings.end(DecorationPhase.DECODE, decode);
+        if (isEmpty(originalResponseString)) {
+            logger.debug("Original response string is empty.");
             writeOriginalOutputToResponse(responseWrapper, response);
         } else if (!shouldDecorateRequest(request)) {
             logger.debug("Should not decorate response for request: {}", request.getRequestURI());
             writeToResponse(removePlaceholders(originalResponseString, fragmentNames), response);
+        } else if (asyncExecutor != null && request.isAsyncSupported()) {
+            logger.debug("Merging response with fragments asynchronously for request: {}", request.getRequestURI());
+            markRequestAsDecorated(request);
+            decorateAsync(originalResponseString, responseWrapper.getHeaders(), request, response, prefetch);
         } else {
             logger.debug("Merging response with fragments for request: {}", request.getRequestURI());
-            String mergedResponseString = mergeWithFragments(originalResponseString, request);
+            String outputCacheKey = outputCacheKey(request);
+            MarkupMerger markupMerger = createMarkupMerger(originalResponseString, request, prefetch);
             markRequestAsDecorated(request);
-            writeToResponse(mergedResponseString, response);
+            addPreloadLinks(markupMerger.getHtmlFragments(), response);
+            addVaryAcceptEncoding(response);
+            boolean cachePage = outputCacheKey != null && isCacheable(response, responseWrapper, markupMerger);
+            boolean gzip = !cachePage && shouldGzip(request, response);
+            String etag = shouldAddEtag ? createEtag(responseWrapper.getHeaders(), markupMerger, gzip) : null;
+            if (etag != null && writeNotModifiedIfMatches(etag, request, response)) {
+                logger.debug("Decorated page is not modified for request: {}", request.getRequestURI());
+            } else if (cachePage) {
+                writeAndCachePage(outputCacheKey, markupMerger, responseWrapper.getHeaders(), etag, request, response);
+            } else {
+                writeMergedResponse(markupMerger, gzip, request, response);
+            }
+        }
+    }
+
+    /**
+     * @param gzip om siden skrives komprimert, og derfor må ha en annen ETag enn den ukomprimerte
+     */
+    private static String createEtag(Map<String, List<String>> applicationHeaders, MarkupMerger markupMerger, boolean gzip) {
+        String applicationEtag = null;
+        for (Map.Entry<String, List<String>> header : applicationHeaders.entrySet()) {
+            if ("etag".equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+                applicationEtag = header.getValue().get(0);
+            }
+        }
+        String etag = ETags.create(applicationEtag, markupMerger.getContext().getOriginalResponseString(), markupMerger.getHtmlFragments().getContentHash());
+        return gzip ? ETags.withGzipSuffix(etag) : etag;
+    }
+
+    /**
+     * @return true hvis shouldGzipOutput er satt, klienten godtar gzip og applikasjonen ikke har komprimert selv
+     */
+    private boolean shouldGzip(HttpServletRequest request, HttpServletResponse response) {
+        return shouldGzipOutput && acceptsGzip(request.getHeader("Accept-Encoding")) && !response.containsHeader("Content-Encoding");
+    }
+
+    /**
+     * Med shouldGzipOutput avhenger siden av Accept-Encoding, også når den ikke komprimeres eller svaret er 304.
+     */
+    private void addVaryAcceptEncoding(HttpServletResponse response) {
+        if (shouldGzipOutput) {
+            response.addHeader("Vary", "Accept-Encoding");
+        }
+    }
+
+    /**
+     * Setter ETag, og svarer 304 uten body hvis klienten allerede har siden.
+     */
+    private static boolean writeNotModifiedIfMatches(String etag, HttpServletRequest request, HttpServletResponse response) {
+        response.setHeader("ETag", etag);
+        if (ETags.matches(request.getHeader("If-None-Match"), etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return nøkkelen siden caches under, eller null hvis den ikke skal caches: forespørselen er ikke en anonym GET
+     * til en URL som matcher outputCachePatterns, eller skal ikke dekoreres
+     */
+    private String outputCacheKey(HttpServletRequest request) {
+        if (outputCache == null || !"GET".equals(request.getMethod()) || !isAnonymous(request) || !shouldDecorateRequest(request)
+                || !RouteMatcher.matching(outputCachePatterns).matches(request.getRequestURI())) {
+            return null;
+        }
+        String queryString = request.getQueryString();
+        return queryString == null ? request.getRequestURI() : request.getRequestURI() + '?' + queryString;
+    }
+
+    private static boolean isAnonymous(HttpServletRequest request) {
+        return request.getHeader("Authorization") == null && request.getUserPrincipal() == null && request.getRequestedSessionId() == null;
+    }
+
+    /**
+     * Sider med cookies, private cache-direktiver, annen status enn 200 eller uten fragmenter caches ikke.
+     */
+    private static boolean isCacheable(HttpServletResponse response, DecoratorResponseWrapper responseWrapper, MarkupMerger markupMerger) {
+        String cacheControl = response.getHeader("Cache-Control");
+        boolean privateCacheControl = cacheControl != null
+                && (cacheControl.contains("private") || cacheControl.contains("no-store") || cacheControl.contains("no-cache"));
+        return response.getStatus() == HttpServletResponse.SC_OK && !responseWrapper.hasCookies() && !privateCacheControl
+                && markupMerger.getHtmlFragments().getVersion() != HtmlFragments.EMPTY.getVersion();
+    }
+
+    private void writeAndCachePage(String outputCacheKey, MarkupMerger markupMerger, Map<String, List<String>> applicationHeaders,
+                                   String etag, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        DecorationTimings timings = DecorationTimings.of(request);
+        String characterEncoding = response.getCharacterEncoding();
+        byte[] body;
+        long merge = timings.begin();
+        SegmentedOutput output = new SegmentedOutput(characterEncoding);
+        try {
+            markupMerger.mergeTo(output);
+            body = output.toByteArray();
+        } finally {
+            output.release();
+        }
+        timings.end(DecorationPhase.MERGE, merge);
+
+        Map<String, List<String>> headers = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> header : applicationHeaders.entrySet()) {
+            if (!NOT_CACHED_HEADERS.contains(header.getKey().toLowerCase())) {
+                headers.put(header.getKey(), new ArrayList<>(header.getValue()));
+            }
+        }
+        String fragmentsUrl = createFragmentFetcher(markupMerger.getContext(), markupMerger.getFragmentNames()).getUrl();
+        outputCache.put(outputCacheKey, new OutputCache.Page(body, response.getContentType(), characterEncoding, headers,
+                fragmentsUrl, markupMerger.getFragmentNames(), markupMerger.getHtmlFragments().getVersion(), etag));
+
+        addServerTiming(request, response);
+        long write = timings.begin();
+        writeBodyToResponse(body, characterEncoding, response);
+        timings.end(DecorationPhase.WRITE, write);
+    }
+
+    /**
+     * @return false hvis siden ikke er cachet, eller fragmentene er endret siden den ble cachet
+     */
+    private boolean writeCachedPage(String outputCacheKey, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        OutputCache.Page page = outputCache.get(outputCacheKey);
+        if (page == null) {
+            return false;
+        }
+        HtmlFragments currentFragments = getCurrentFragments(page);
+        if (currentFragments == null) {
+            outputCache.removeStale(outputCacheKey, page);
+            return false;
+        }
+
+        for (Map.Entry<String, List<String>> header : page.headers.entrySet()) {
+            for (String value : header.getValue()) {
+                response.addHeader(header.getKey(), value);
+            }
+        }
+        markRequestAsDecorated(request);
+        addPreloadLinks(currentFragments, response);
+        addVaryAcceptEncoding(response);
+        if (page.etag != null && writeNotModifiedIfMatches(page.etag, request, response)) {
+            return true;
+        }
+        response.setCharacterEncoding(page.characterEncoding);
+        response.setContentType(page.contentType);
+        addServerTiming(request, response);
+        DecorationTimings timings = DecorationTimings.of(request);
+        long write = timings.begin();
+        writeBodyToResponse(page.body, page.characterEncoding, response);
+        timings.end(DecorationPhase.WRITE, write);
+        return true;
+    }
+
+    /**
+     * @return fragmentene siden ble dekorert med, eller null hvis de er endret siden siden ble cachet
+     */
+    private HtmlFragments getCurrentFragments(OutputCache.Page page) {
+        try {
+            HtmlFragments htmlFragments = fragmentCache.getFragments(page.fragmentsUrl, contentRetriever.getPageContent(page.fragmentsUrl), page.fragmentNames);
+            return htmlFragments.getVersion() == page.fragmentsVersion ? htmlFragments : null;
+        } catch (RuntimeException e) {
+            logger.warn("Klarte ikke å sjekke om fragmentene til en cachet side er endret", e);
+            return null;
+        }
+    }
+
+    /**
+     * Legger til Link-headere for stilarkene og skriptene i fragmentene, slik at nettleseren kan begynne å hente
+     * dem før den har lest siden.
+     */
+    private void addPreloadLinks(HtmlFragments htmlFragments, HttpServletResponse response) {
+        if (shouldAddPreloadLinks) {
+            for (String link : htmlFragments.getPreloadLinks()) {
+                response.addHeader("Link", link);
+            }
+        }
+    }
+
+    private static void writeBodyToResponse(byte[] body, String characterEncoding, HttpServletResponse response) throws IOException {
+        response.setContentLength(body.length);
+        try {
+            response.getOutputStream().write(body);
+        } catch (IllegalStateException getWriterAlreadyCalled) {
+            response.getWriter().write(new String(body, characterEncoding));
+        }
+    }
+
+    /**
+     * Skriver siden segment for segment, slik at fragmentenes ferdig kodede bytes ikke kopieres eller kodes på nytt.
+     * Med gzip komprimeres siden, og fragmentene brukes ferdig komprimert.
+     */
+    private void writeMergedResponse(MarkupMerger markupMerger, boolean gzip, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        ServletOutputStream outputStream;
+        try {
+            outputStream = response.getOutputStream();
+        } catch (IllegalStateException getWriterAlreadyCalled) {
+            response.getWriter().write(markupMerger.merge());
+            return;
+        }
+
+        DecorationTimings timings = DecorationTimings.of(request);
+        SegmentedOutput output = new SegmentedOutput(response.getCharacterEncoding());
+        SegmentedOutput compressed = null;
+        try {
+            long merge = timings.begin();
+            markupMerger.mergeTo(output);
+            timings.end(DecorationPhase.MERGE, merge);
+            addServerTiming(request, response);
+
+            long write = timings.begin();
+            if (gzip) {
+                compressed = output.gzip();
+                response.setHeader("Content-Encoding", "gzip");
+            }
+            SegmentedOutput written = compressed != null ? compressed : output;
+            response.setContentLength(written.size());
+            written.writeTo(outputStream);
+            timings.end(DecorationPhase.WRITE, write);
+        } finally {
+            output.release();
+            if (compressed != null) {
+                compressed.release();
+            }
+        }
+    }
+
+    /**
+     * Henter fragmentene og skriver siden fra en tråd i asyncExecutor, slik at containertråden er ledig mens Enonic svarer.
+     * Blir ikke siden ferdig innen asyncTimeoutMillis, skrives den uten dekorering.
+     */
+    private void decorateAsync(String originalResponseString, Map<String, List<String>> applicationHeaders, HttpServletRequest request,
+                               HttpServletResponse response, FragmentPrefetch prefetch) {
+        AsyncContext asyncContext = request.startAsync(request, response);
+        asyncContext.setTimeout(asyncTimeoutMillis);
+        AtomicBoolean written = new AtomicBoolean();
+        CountDownLatch decorationWritten = new CountDownLatch(1);
+        AtomicBoolean completed = new AtomicBoolean();
+        Runnable complete = () -> {
+            if (completed.compareAndSet(false, true)) {
+                finishTimings(DecorationTimings.of(request));
+                asyncContext.complete();
+            }
+        };
+        String requestUri = request.getRequestURI();
+
+        asyncContext.addListener(new AsyncListener() {
+            /**
+             * Skriver siden uten dekorering hvis dekoreringen ikke har begynt å skrive. Ellers ventes det til den er
+             * ferdig, for containeren svarer med en feil hvis forespørselen ikke er fullført når onTimeout returnerer.
+             */
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                if (written.compareAndSet(false, true)) {
+                    logger.warn("Fikk ikke dekorert {} innen {} ms, skriver siden uten dekorering", requestUri, asyncTimeoutMillis);
+                    try {
+                        writeToResponse(removePlaceholders(originalResponseString, fragmentNames), response);
+                    } finally {
+                        complete.run();
+                    }
+                    return;
+                }
+                try {
+                    decorationWritten.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                complete.run();
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+
+        Runnable decoration = () -> {
+            MarkupMerger markupMerger = null;
+            try {
+                markupMerger = createMarkupMerger(originalResponseString, request, prefetch);
+            } catch (RuntimeException e) {
+                logger.error("Klarte ikke å hente fragmenter for {}, skriver siden uten dekorering", requestUri, e);
+            }
+            if (!written.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                if (markupMerger == null) {
+                    writeToResponse(removePlaceholders(originalResponseString, fragmentNames), response);
+                } else {
+                    addPreloadLinks(markupMerger.getHtmlFragments(), response);
+                    addVaryAcceptEncoding(response);
+                    boolean gzip = shouldGzip(request, response);
+                    if (!shouldAddEtag || !writeNotModifiedIfMatches(createEtag(applicationHeaders, markupMerger, gzip), request, response)) {
+                        writeMergedResponse(markupMerger, gzip, request, response);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Klarte ikke å skrive dekorert respons for {}", requestUri, e);
+            } finally {
+                complete.run();
+                decorationWritten.countDown();
+            }
+        };
+
+        try {
+            asyncExecutor.execute(decoration);
+        } catch (RejectedExecutionException e) {
+            logger.debug("Ingen ledige tråder for asynkron dekorering, dekorerer {} på containertråden", requestUri);
+            decoration.run();
+        }
+    }
+
+    /**
+     * Avgjør hvordan resten av responsen skal skrives når head er lest. Sider som trenger hele dokumentet
+     * (fjerning av submeny) eller der innholdstype, status eller tegnsett ikke passer, buffres og dekoreres som før.
+     */
+    private StreamingDecoration resolveStreamingDecoration(String head, HttpServletRequest request, HttpServletResponse response,
+                                                           FragmentPrefetch prefetch) {
+        String contentType = response.getContentType();
+        if (contentType == null || !hasAppropriateStatusCode(response.getStatus()) || !isAsciiCompatible(response.getCharacterEncoding())) {
+            return StreamingDecoration.buffer();
+        }
+        if (!shouldHandleContentType(contentType)) {
+            return StreamingDecoration.passThrough();
+        }
+        DecoratorRequestContext context = new DecoratorRequestContext(request, head);
+        if (isSubmenuFragmentDefined() && uriMatchesNoSubmenuPattern(context.getRequestUriOrAlternativePath())) {
+            return StreamingDecoration.buffer();
+        }
+
+        HtmlFragments htmlFragments = fetchHtmlFragments(context, fragmentNames, prefetch);
+        addPreloadLinks(htmlFragments, response);
+        addServerTiming(request, response);
+        Map<String, String> replacements = MarkupMerger.createReplacements(MarkupMerger.fragmentMarkup(fragmentNames, htmlFragments),
+                context.getTitle(), applicationName);
+        markRequestAsDecorated(request);
+        return StreamingDecoration.decorate(replacements);
+    }
+
+    private boolean uriMatchesNoSubmenuPattern(String uri) {
+        return RouteMatcher.matching(noSubmenuPatterns).matches(uri);
+    }
+
+    private static boolean isAsciiCompatible(String characterEncoding) {
+        try {
+            Charset charset = Charset.forName(characterEncoding);
+            boolean singleByteOrUtf8 = charset.newEncoder().maxBytesPerChar() == 1.0f || "UTF-8".equals(charset.name());
+            return singleByteOrUtf8 && "{}</>".equals(new String("{}</>".getBytes(charset), Charset.forName("US-ASCII")));
+        } catch (IllegalCharsetNameException | UnsupportedCharsetException | UnsupportedOperationException e) {
+            return false;
         }
     }
 
     private void writeToResponse(String transformedOutput, HttpServletResponse response) throws IOException {
         String characterEncoding = response.getCharacterEncoding();
+        ByteArrayServletOutputStream encoded = new ByteArrayServletOutputStream(characterEncoding, ChunkPool.BYTES);
         try {
-            byte[] transformedOutputAsBytes = transformedOutput.getBytes(characterEncoding);
-            response.setContentLength(transformedOutputAsBytes.length);
-            response.getOutputStream().write(transformedOutputAsBytes);
+            CharEncoder.encode(transformedOutput, characterEncoding, encoded);
+            response.setContentLength(encoded.size());
+            encoded.writeTo(response.getOutputStream());
         } catch (IllegalStateException getWriterAlreadyCalled) {
             response.getWriter().write(transformedOutput);
+        } finally {
+            encoded.release();
         }
     }
 
@@ -145,7 +659,7 @@ public class DecoratorFilter implements Filter {
         }
 
         try {
-            response.getOutputStream().write(responseWrapper.getOutputAsByteArray());
+            responseWrapper.writeOutputTo(response.getOutputStream());
         } catch (IllegalStateException getWriterHasAlreadyBeenCalled) {
             response.getWriter().print(responseWrapper.getOutputAsString());
         }
@@ -155,15 +669,16 @@ public class DecoratorFilter implements Filter {
         return !(requestUriMatchesNoDecoratePattern(request) || requestHeaderHasExcludeValue(request) || filterAlreadyAppliedForRequest(request));
     }
 
+    /**
+     * @return true hvis klienten ber om html, eller URL-en matcher prefetchPatterns
+     */
+    private boolean isPageRequest(HttpServletRequest request) {
+        String accept = request.getHeader("Accept");
+        return (accept != null && accept.contains("text/html")) || RouteMatcher.matching(prefetchPatterns).matches(request.getRequestURI());
+    }
+
     private boolean requestUriMatchesNoDecoratePattern(HttpServletRequest request) {
-        String requestUri = request.getRequestURI();
-        for (String noDecoratePattern : noDecoratePatterns) {
-            Matcher matcher = createMatcher(noDecoratePattern, requestUri);
-            if (matcher.matches()) {
-                return true;
-            }
-        }
-        return false;
+        return RouteMatcher.matching(noDecoratePatterns).matches(request.getRequestURI());
     }
 
     private boolean requestHeaderHasExcludeValue(HttpServletRequest request) {
@@ -205,22 +720,55 @@ public class DecoratorFilter implements Filter {
         return statusCode >= 0 && errorZone != 3;
     }
 
-    private String mergeWithFragments(String originalResponseString, HttpServletRequest request) {
-        FragmentFetcher fragmentFetcher = new FragmentFetcher(contentRetriever, fragmentsUrl, applicationName, shouldIncludeActiveItem, subMenuPath, fragmentNames, additionalOptions,
-                request, originalResponseString, extendedConfiguration);
-        Document htmlFragments;
+    private MarkupMerger createMarkupMerger(String originalResponseString, HttpServletRequest request, FragmentPrefetch prefetch) {
+        DecoratorRequestContext context = new DecoratorRequestContext(request, originalResponseString);
+        if (!shouldFetchOnlyFragmentsInPage) {
+            return new MarkupMerger(fragmentNames, noSubmenuPatterns, fetchHtmlFragments(context, fragmentNames, prefetch), context, applicationName);
+        }
+
+        List<String> fragmentNamesInPage = fragmentNamesInMarkup(originalResponseString, fragmentNames);
+        HtmlFragments htmlFragments = fragmentNamesInPage.isEmpty() ? HtmlFragments.EMPTY : fetchHtmlFragments(context, fragmentNamesInPage, prefetch);
+        return new MarkupMerger(fragmentNamesInPage, noSubmenuPatterns, htmlFragments, context, applicationName);
+    }
+
+    private FragmentFetcher createFragmentFetcher(DecoratorRequestContext context, List<String> requestedFragmentNames) {
+        return new FragmentFetcher(contentRetriever, fragmentsUrl, applicationName, shouldIncludeActiveItem && !shouldMarkActiveItemLocally,
+                subMenuPath, requestedFragmentNames, additionalOptions, context, extendedConfiguration, fragmentCache);
+    }
+
+    private HtmlFragments fetchHtmlFragments(DecoratorRequestContext context, List<String> requestedFragmentNames, FragmentPrefetch prefetch) {
+        DecorationTimings timings = DecorationTimings.of(context.getRequest());
+        FragmentFetcher fragmentFetcher = createFragmentFetcher(context, requestedFragmentNames);
+        long buildUrl = timings.begin();
+        String url = fragmentFetcher.getUrl();
+        timings.end(DecorationPhase.URL, buildUrl);
+        long fetch = timings.begin();
         try {
-            htmlFragments = fragmentFetcher.fetchHtmlFragments();
+            HtmlFragments htmlFragments = decorationBudget.fetch(url, prefetch == null ? null : prefetch.getFragments(url),
+                    fragmentFetcher, fragmentCache, timings);
+            if (shouldMarkActiveItemLocally) {
+                return htmlFragments.withActiveItem(fragmentFetcher.getActiveItem());
+            }
+            return htmlFragments;
         } catch (CacheException e) {
             logger.warn("Klarte ikke å hente HTML fragment. Returnerer tom streng", e);
-            htmlFragments = Jsoup.parse(StringUtils.EMPTY);
+            timings.setFetchResult(DecorationTimings.FetchResult.NONE);
+            return HtmlFragments.EMPTY;
+        } finally {
+            timings.end(DecorationPhase.FETCH, fetch);
         }
-        MarkupMerger markupMerger = new MarkupMerger(fragmentNames, noSubmenuPatterns, originalResponseString, htmlFragments, request, applicationName);
-        return markupMerger.merge();
     }
 
     @Override
     public void destroy() {
+        if (prefetchExecutor != null) {
+            prefetchExecutor.shutdownNow();
+        }
+        if (asyncExecutor != null) {
+            asyncExecutor.shutdownNow();
+        }
+        decorationBudget.shutdown();
+        CharEncoder.clearPool();
     }
 
     public void setFragmentsUrl(String fragmentsUrl) {
@@ -247,11 +795,100 @@ public class DecoratorFilter implements Filter {
         this.shouldIncludeActiveItem = true;
     }
 
+    /**
+     * Hent fragmentene uten activeitem i URL-en, slik at alle sider med samme rolle deler de samme fragmentene,
+     * og sett klassen "active" på lenkene til aktivt menypunkt her i stedet for i Enonic.
+     */
+    public void setShouldMarkActiveItemLocally() {
+        this.shouldIncludeActiveItem = true;
+        this.shouldMarkActiveItemLocally = true;
+    }
+
+    /**
+     * Antall aktive menypunkter per versjon av fragmentene som beholder ferdig kodet og komprimert markering, 32 som
+     * standard. Hver variant holder en kopi av fragmentene som har lenke til menypunktet, typisk bare menyen.
+     */
+    public void setMaxActiveItemVariants(int maxActiveItemVariants) {
+        if (maxActiveItemVariants < 0) {
+            throw new IllegalArgumentException("maxActiveItemVariants kan ikke være negativ: " + maxActiveItemVariants);
+        }
+        fragmentCache.setMaxActiveItems(maxActiveItemVariants);
+    }
+
+    /**
+     * Hent bare fragmentene som har en placeholder i siden, i stedet for alle i fragmentNames. Sider uten
+     * placeholdere, som popup- og utskriftsvisninger, henter ingenting fra Enonic. Gjelder ikke strømmende dekorering,
+     * der bare head er lest når fragmentene hentes.
+     */
+    public void setShouldFetchOnlyFragmentsInPage(boolean shouldFetchOnlyFragmentsInPage) {
+        this.shouldFetchOnlyFragmentsInPage = shouldFetchOnlyFragmentsInPage;
+    }
+
+    /**
+     * Komprimerer dekorerte sider med gzip når klienten godtar det. Fragmentene komprimeres én gang per versjon,
+     * så bare applikasjonens markup komprimeres per forespørsel. Sider som strømmes eller hentes fra output-cachen
+     * komprimeres ikke.
+     */
+    public void setShouldGzipOutput(boolean shouldGzipOutput) {
+        this.shouldGzipOutput = shouldGzipOutput;
+    }
+
+    /**
+     * Legg til Link: &lt;url&gt;; rel=preload på dekorerte sider for stilarkene og skriptene fragmentene viser til.
+     * Lenkene hentes ut én gang per versjon av fragmentene.
+     */
+    public void setShouldAddPreloadLinks(boolean shouldAddPreloadLinks) {
+        this.shouldAddPreloadLinks = shouldAddPreloadLinks;
+    }
+
+    /**
+     * Sett ETag på dekorerte sider, laget av applikasjonens ETag eller en hash av det den skrev, og en hash av
+     * fragmentene. Forespørsler med en If-None-Match som treffer får 304 uten at siden settes sammen eller skrives.
+     */
+    public void setShouldAddEtag(boolean shouldAddEtag) {
+        this.shouldAddEtag = shouldAddEtag;
+    }
+
     public void setNoDecoratePatterns(List<String> noDecoratePatterns) {
         this.noDecoratePatterns = noDecoratePatterns;
         this.noDecoratePatterns.addAll(DEFAULT_NO_DECORATE_PATTERNS);
     }
 
+    /**
+     * Cache ferdig dekorerte sider for anonyme GET-forespørsler til URL-er som matcher outputCachePatterns, og skriv dem
+     * uten å kjøre applikasjonen. En side caches på nytt når fragmentene fra Enonic endres.
+     */
+    public void setOutputCachePatterns(List<String> outputCachePatterns) {
+        this.outputCachePatterns = outputCachePatterns;
+        if (outputCache == null) {
+            outputCache = new OutputCache(OutputCache.DEFAULT_MAX_BYTES);
+        }
+    }
+
+    public void setOutputCacheMaxBytes(long maxBytes) {
+        outputCache = new OutputCache(maxBytes);
+    }
+
+    public long getOutputCacheHits() {
+        return outputCache == null ? 0 : outputCache.getHits();
+    }
+
+    public long getOutputCacheMisses() {
+        return outputCache == null ? 0 : outputCache.getMisses();
+    }
+
+    /**
+     * @return sider som lå i output-cachen, men ble laget på nytt fordi fragmentene var endret. Telles ikke som treff
+     * eller bom
+     */
+    public long getOutputCacheStale() {
+        return outputCache == null ? 0 : outputCache.getStale();
+    }
+
+    public long getOutputCacheBytes() {
+        return outputCache == null ? 0 : outputCache.getBytes();
+    }
+
     public void setNoSubmenuPatterns(List<String> noSubmenuPatterns) {
         this.noSubmenuPatterns = noSubmenuPatterns;
     }
@@ -267,4 +904,156 @@ public class DecoratorFilter implements Filter {
     public void setAdditionalOptions(Map<String, String> additionalOptions) {
         this.additionalOptions = additionalOptions;
     }
+
+    /**
+     * @return buffere som ligger klare til gjenbruk
+     */
+    public int getBufferPoolAvailableChunks() {
+        return ChunkPool.BYTES.getAvailableChunks() + ChunkPool.CHARS.getAvailableChunks();
+    }
+
+    /**
+     * @return buffere som holder responser som er under behandling
+     */
+    public int getBufferPoolChunksInUse() {
+        return ChunkPool.BYTES.getChunksInUse() + ChunkPool.CHARS.getChunksInUse();
+    }
+
+    /**
+     * @return buffere som er allokert fordi ingen var ledige, siden oppstart
+     */
+    public long getBufferPoolCreatedChunks() {
+        return ChunkPool.BYTES.getCreatedChunks() + ChunkPool.CHARS.getCreatedChunks();
+    }
+
+    /**
+     * Dekorer responsen mens applikasjonen skriver den, i stedet for å buffre hele siden. Head og header sendes
+     * til klienten så snart slutten av head er skrevet.
+     */
+    public void setStreamingDecoration(boolean streamingDecoration) {
+        this.streamingDecoration = streamingDecoration;
+    }
+
+    /**
+     * Begynn å hente fragmentene når forespørselen kommer inn, i en av prefetchThreads tråder, i stedet for etter at
+     * applikasjonen har laget responsen. Gjelder forespørsler med text/html i Accept, og URL-er som matcher
+     * {@link #setFragmentPrefetchPatterns(List)}. Forespørsler som ikke får plass i køen henter fragmentene som før.
+     * <p>
+     * URL-en fragmentene hentes fra bygges før applikasjonen har skrevet noe. Sider som setter meta-taggene Brukerstatus
+     * eller hodeFotKey får derfor en annen URL, og fragmentene hentes på nytt. Etter noen slike bom på rad hentes
+     * fragmentene ikke lenger på forhånd for den URL-en i applikasjonen, bortsett fra hver hundrede forespørsel.
+     */
+    public void setFragmentPrefetchThreads(int prefetchThreads) {
+        if (prefetchExecutor != null) {
+            prefetchExecutor.shutdown();
+        }
+        prefetchExecutor = prefetchThreads > 0 ? createExecutor(prefetchThreads, "decorator-fragment-prefetch-") : null;
+    }
+
+    /**
+     * Hent fragmentene på forhånd også for URL-er som matcher prefetchPatterns, selv om Accept ikke inneholder
+     * text/html. Unngå URL-er der siden setter meta-taggene Brukerstatus eller hodeFotKey, se
+     * {@link #setFragmentPrefetchThreads(int)}.
+     */
+    public void setFragmentPrefetchPatterns(List<String> prefetchPatterns) {
+        this.prefetchPatterns = prefetchPatterns;
+    }
+
+    /**
+     * Hent fragmentene og skriv siden asynkront med Servlet 3 AsyncContext, i en av asyncThreads tråder, slik at
+     * containertråden kan ta nye forespørsler mens Enonic svarer. Sider som ikke er ferdige etter timeoutMillis skrives
+     * uten dekorering. Gjelder bare forespørsler der alle filtre og servleten støtter async.
+     */
+    public void setAsyncDecoration(int asyncThreads, long timeoutMillis) {
+        if (asyncExecutor != null) {
+            asyncExecutor.shutdown();
+        }
+        asyncExecutor = asyncThreads > 0 ? createExecutor(asyncThreads, "decorator-async-") : null;
+        asyncTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Vent høyst budgetMillis på fragmentene. Kommer de ikke, brukes fragmentene sist hentet for samme side, eller
+     * så skrives siden uten fragmenter. Fragmenter som ikke allerede hentes på forhånd, hentes i en av fetchThreads
+     * tråder, som må være minst én når budgetMillis er større enn 0.
+     */
+    public void setDecorationBudget(long budgetMillis, int fetchThreads) {
+        if (budgetMillis > 0 && fetchThreads <= 0) {
+            throw new IllegalArgumentException("fetchThreads må være større enn 0 når budgetMillis er satt: " + fetchThreads);
+        }
+        decorationBudget.shutdown();
+        decorationBudget = budgetMillis > 0
+                ? new DecorationBudget(budgetMillis, createExecutor(fetchThreads, "decorator-fragment-fetch-"))
+                : new DecorationBudget(0, null);
+    }
+
+    /**
+     * @return dekorerte forespørsler som fikk fragmentene innen budsjettet
+     */
+    public long getDecorationsWithinBudget() {
+        return decorationBudget.getWithinBudget();
+    }
+
+    /**
+     * @return dekorerte forespørsler som fikk fragmentene sist hentet for siden, fordi budsjettet var brukt opp
+     */
+    public long getDecorationsWithLastKnownFragments() {
+        return decorationBudget.getWithLastKnownFragments();
+    }
+
+    /**
+     * @return forespørsler som ble skrevet uten fragmenter, fordi budsjettet var brukt opp og ingen var hentet før
+     */
+    public long getDecorationsWithoutFragments() {
+        return decorationBudget.getWithoutFragments();
+    }
+
+    /**
+     * Mål tiden i hver {@link DecorationPhase} og tell hvor fragmentene kom fra, i histogrammene fra
+     * {@link #getDecorationTimingHistograms()}.
+     */
+    public void setShouldTimeDecoration(boolean shouldTimeDecoration) {
+        if (timingHistograms != null) {
+            timingListeners.remove(timingHistograms);
+            timingHistograms = null;
+        }
+        if (shouldTimeDecoration) {
+            timingHistograms = new DecorationTimingHistograms();
+            timingListeners.add(timingHistograms);
+        }
+    }
+
+    /**
+     * @return histogrammene over fasene, eller null hvis de ikke er slått på med {@link #setShouldTimeDecoration(boolean)}
+     */
+    public DecorationTimingHistograms getDecorationTimingHistograms() {
+        return timingHistograms;
+    }
+
+    /**
+     * Gi målingene for hver forespørsel til timingListener når forespørselen er ferdig.
+     */
+    public void addDecorationTimingListener(DecorationTimingListener timingListener) {
+        timingListeners.add(timingListener);
+    }
+
+    /**
+     * Sett en Server-Timing-header med fasene som er målt før siden skrives, slik at de vises i nettleserens
+     * utviklerverktøy. Viser hvor lang tid applikasjonen og hentingen av fragmenter tar, så bør bare brukes i testmiljøer.
+     */
+    public void setShouldAddServerTiming(boolean shouldAddServerTiming) {
+        this.shouldAddServerTiming = shouldAddServerTiming;
+    }
+
+    private static ExecutorService createExecutor(int threads, String threadNamePrefix) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(EXECUTOR_QUEUE_SIZE), runnable -> {
+                    Thread thread = new Thread(runnable, threadNamePrefix + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
 }
@@ -1,27 +1,19 @@
 package no.nav.innholdshenter.filter;
 
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
-
 import javax.servlet.http.HttpServletRequest;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import static org.apache.commons.lang3.StringUtils.isEmpty;
-
 public class DecoratorFilterUtils {
 
     static final String PLACEHOLDER_START = "{{";
     static final String PLACEHOLDER_END = "}}";
     static final String PLACEHOLDER_PREFIX = "fragment.";
 
-    static final String PLACEHOLDER_START_REGEX = "\\{\\{";
-    static final String PLACEHOLDER_END_REGEX = "\\}\\}";
-    static final String PLACEHOLDER_PREFIX_REGEX = "fragment\\.";
-    static final String PLACEHOLDER_REGEX = ".*(" + PLACEHOLDER_START_REGEX + PLACEHOLDER_PREFIX_REGEX + ".*" + PLACEHOLDER_END_REGEX + ").*";
-
     private DecoratorFilterUtils() {
     }
 
@@ -46,28 +38,64 @@ public class DecoratorFilterUtils {
         return responseString.replace(createPlaceholder(fragmentName), "");
     }
 
+    /**
+     * @return fragmentene som har en placeholder i markup, i samme rekkefølge som i fragmentNames
+     */
+    static List<String> fragmentNamesInMarkup(String markup, List<String> fragmentNames) {
+        String start = PLACEHOLDER_START + PLACEHOLDER_PREFIX;
+        Set<String> found = new HashSet<>();
+        for (int index = markup.indexOf(start); index >= 0 && found.size() < fragmentNames.size(); index = markup.indexOf(start, index + 1)) {
+            int nameStart = index + start.length();
+            int end = markup.indexOf(PLACEHOLDER_END, nameStart);
+            if (end < 0) {
+                break;
+            }
+            String fragmentName = markup.substring(nameStart, end);
+            if (fragmentNames.contains(fragmentName)) {
+                found.add(fragmentName);
+            }
+        }
+
+        List<String> fragmentNamesInMarkup = new ArrayList<>(found.size());
+        for (String fragmentName : fragmentNames) {
+            if (found.contains(fragmentName)) {
+                fragmentNamesInMarkup.add(fragmentName);
+            }
+        }
+        return fragmentNamesInMarkup;
+    }
+
+    /**
+     * @return true hvis Accept-Encoding tar med gzip uten q=0
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parameters = coding.split(";");
+            if ("gzip".equalsIgnoreCase(parameters[0].trim())) {
+                for (int i = 1; i < parameters.length; i++) {
+                    String parameter = parameters[i].trim();
+                    if (parameter.startsWith("q=") && parameter.substring(2).matches("0(\\.0*)?")) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
     static String createPlaceholder(String fragmentName) {
         return PLACEHOLDER_START + PLACEHOLDER_PREFIX + fragmentName + PLACEHOLDER_END;
     }
 
     public static String getRequestUriOrAlternativePathBasedOnMetaTag(String originalResponseString, HttpServletRequest request) {
-        String alternativeRequestUri = extractMetaTag(originalResponseString, "hodeFotKey");
-
-        if (!isEmpty(alternativeRequestUri)) {
-            return alternativeRequestUri;
-        } else {
-            return request.getRequestURI();
-        }
+        return new DecoratorRequestContext(request, originalResponseString).getRequestUriOrAlternativePath();
     }
 
     public static String extractMetaTag(String originalResponseString, String tag) {
-        Document doc = Jsoup.parse(originalResponseString);
-        Element metaTag = doc.select(String.format("meta[name=%s]", tag)).first();
-
-        if (metaTag != null) {
-            return metaTag.attr("content");
-        } else {
-            return null;
-        }
+        return HtmlHead.scan(originalResponseString).getMetaTag(tag);
     }
 }
@@ -0,0 +1,58 @@
+package no.nav.innholdshenter.filter;
+
+import javax.servlet.http.HttpServletRequest;
+
+import static org.apache.commons.lang3.StringUtils.isEmpty;
+
+/**
+ * Det som dekoreringen av én forespørsel trenger fra applikasjonens respons. Head leses bare én gang,
+ * første gang en meta-tagg eller tittelen etterspørres.
+ */
+public class DecoratorRequestContext {
+
+    private final HttpServletRequest request;
+    private final String originalResponseString;
+    private HtmlHead head;
+
+    /**
+     * @param originalResponseString applikasjonens markup, eller bare head ved strømmende dekorering
+     */
+    public DecoratorRequestContext(HttpServletRequest request, String originalResponseString) {
+        this.request = request;
+        this.originalResponseString = originalResponseString;
+    }
+
+    public HttpServletRequest getRequest() {
+        return request;
+    }
+
+    public String getOriginalResponseString() {
+        return originalResponseString;
+    }
+
+    public String getMetaTag(String name) {
+        return getHead().getMetaTag(name);
+    }
+
+    public String getTitle() {
+        return getHead().getTitle();
+    }
+
+    /**
+     * @return path fra meta-taggen hodeFotKey hvis applikasjonen har satt den, ellers request-URI
+     */
+    public String getRequestUriOrAlternativePath() {
+        String alternativeRequestUri = getMetaTag("hodeFotKey");
+        if (!isEmpty(alternativeRequestUri)) {
+            return alternativeRequestUri;
+        }
+        return request.getRequestURI();
+    }
+
+    private HtmlHead getHead() {
+        if (head == null) {
+            head = HtmlHead.scan(originalResponseString);
+        }
+        return head;
+    }
+}
@@ -1,24 +1,57 @@
 package no.nav.innholdshenter.filter;
 
 import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
 
 /**
  * Wraps the response from the servlet. Used to decorate response.
  */
 class DecoratorResponseWrapper extends HttpServletResponseWrapper {
 
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
     private ByteArrayServletOutputStream stream;
+    private CharChunkWriter charWriter;
     private PrintWriter writer;
     private HttpServletResponse originalResponse;
+    private final Predicate<HttpServletResponse> passThroughCondition;
+    private boolean cookieAdded;
+    private final Map<String, List<String>> headers = new LinkedHashMap<>();
 
     public DecoratorResponseWrapper(HttpServletResponse response) {
+        this(response, null);
+    }
+
+    /**
+     * @param passThroughCondition sjekkes når applikasjonen begynner å skrive. Er den oppfylt, skrives responsen
+     *                             rett til klienten og ingenting buffres.
+     */
+    DecoratorResponseWrapper(HttpServletResponse response, Predicate<HttpServletResponse> passThroughCondition) {
         super(response);
         originalResponse = response;
+        this.passThroughCondition = passThroughCondition;
     }
 
     @Override
@@ -28,7 +61,7 @@ class DecoratorResponseWrapper extends HttpServletResponseWrapper {
         }
 
         if (stream == null) {
-            stream = new ByteArrayServletOutputStream(originalResponse.getCharacterEncoding());
+            stream = createStream();
         }
 
         return stream;
@@ -44,11 +77,101 @@ class DecoratorResponseWrapper extends HttpServletResponseWrapper {
             throw new IllegalStateException("getOutputStream() has already been called!");
         }
 
-        stream = new ByteArrayServletOutputStream(originalResponse.getCharacterEncoding());
-        writer = new PrintWriter(new OutputStreamWriter(stream, originalResponse.getCharacterEncoding()));
+        charWriter = new CharChunkWriter(originalResponse.getCharacterEncoding(), ChunkPool.CHARS,
+                passThroughCondition == null ? null : this::passThroughTarget);
+        writer = new PrintWriter(charWriter);
         return writer;
     }
 
+    private ByteArrayServletOutputStream createStream() {
+        if (passThroughCondition == null) {
+            return new ByteArrayServletOutputStream(originalResponse.getCharacterEncoding(), ChunkPool.BYTES);
+        }
+        return new ByteArrayServletOutputStream(originalResponse.getCharacterEncoding(), ChunkPool.BYTES, this::passThroughTarget);
+    }
+
+    /**
+     * @return strømmen til klienten hvis responsen ikke skal buffres, eller null
+     */
+    OutputStream passThroughTarget() throws IOException {
+        if (passThroughCondition == null || !passThroughCondition.test(this)) {
+            return null;
+        }
+        if (getStatus() == SC_NOT_MODIFIED) {
+            return DISCARD;
+        }
+        try {
+            return originalResponse.getOutputStream();
+        } catch (IllegalStateException getWriterHasAlreadyBeenCalled) {
+            return null;
+        }
+    }
+
+    @Override
+    public void addCookie(Cookie cookie) {
+        cookieAdded = true;
+        super.addCookie(cookie);
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        List<String> values = new ArrayList<>(1);
+        values.add(value);
+        headers.put(name, values);
+        super.setHeader(name, value);
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        headers.computeIfAbsent(name, key -> new ArrayList<>(1)).add(value);
+        super.addHeader(name, value);
+    }
+
+    @Override
+    public void setIntHeader(String name, int value) {
+        setHeader(name, String.valueOf(value));
+    }
+
+    @Override
+    public void addIntHeader(String name, int value) {
+        addHeader(name, String.valueOf(value));
+    }
+
+    @Override
+    public void setDateHeader(String name, long date) {
+        setHeader(name, formatDate(date));
+    }
+
+    @Override
+    public void addDateHeader(String name, long date) {
+        addHeader(name, formatDate(date));
+    }
+
+    private static String formatDate(long date) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(date).atZone(ZoneOffset.UTC));
+    }
+
+    /**
+     * @return headerne applikasjonen har satt, i den rekkefølgen de ble satt
+     */
+    Map<String, List<String>> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @return true hvis applikasjonen har satt en cookie, og responsen derfor gjelder bare denne brukeren
+     */
+    boolean hasCookies() {
+        return cookieAdded || containsHeader("Set-Cookie");
+    }
+
+    /**
+     * @return true hvis responsen er skrevet rett til klienten og ikke skal dekoreres
+     */
+    public boolean isPassingThrough() {
+        return (stream != null && stream.isPassingThrough()) || (charWriter != null && charWriter.isPassingThrough());
+    }
+
     public void flushBuffer() throws IOException {
         if (writer != null) {
             writer.flush();
@@ -60,17 +183,49 @@ class DecoratorResponseWrapper extends HttpServletResponseWrapper {
     }
 
     public String getOutputAsString() {
+        if (charWriter != null) {
+            return charWriter.toString();
+        }
         if (stream != null) {
             return stream.toString();
         }
         return "";
     }
 
-    public byte[] getOutputAsByteArray() {
+    public byte[] getOutputAsByteArray() throws IOException {
+        if (charWriter != null) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            charWriter.writeTo(bytes);
+            return bytes.toByteArray();
+        }
         if (stream != null) {
-            return stream.getByteArrayOutputStream().toByteArray();
+            return stream.toByteArray();
         } else {
             return "".getBytes();
         }
     }
+
+    /**
+     * Skriver det applikasjonen skrev til out, uten å kopiere bufferet. Tegn fra getWriter() kodes her, én gang.
+     */
+    public void writeOutputTo(OutputStream out) throws IOException {
+        if (charWriter != null) {
+            charWriter.writeTo(out);
+        }
+        if (stream != null) {
+            stream.writeTo(out);
+        }
+    }
+
+    /**
+     * Gir bufferet tilbake til poolen når responsen er skrevet.
+     */
+    public void release() {
+        if (charWriter != null) {
+            charWriter.release();
+        }
+        if (stream != null) {
+            stream.release();
+        }
+    }
 }
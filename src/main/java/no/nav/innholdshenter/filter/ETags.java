@@ -0,0 +1,73 @@
+package no.nav.innholdshenter.filter;
+
+/**
+ * ETag for en dekorert side: applikasjonens egen ETag, eller en hash av det applikasjonen skrev, sammen med en
+ * hash av fragmentene. Siden endres bare når en av dem endres.
+ */
+final class ETags {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final String GZIP_SUFFIX = "-gz";
+
+    private ETags() {
+    }
+
+    /**
+     * @param applicationEtag ETag-headeren applikasjonen satte, eller null
+     */
+    static String create(String applicationEtag, String applicationMarkup, long fragmentsHash) {
+        long applicationHash = applicationEtag != null ? hash(opaqueTag(applicationEtag)) : hash(applicationMarkup);
+        return '"' + Long.toHexString(applicationHash) + '-' + Long.toHexString(fragmentsHash) + '"';
+    }
+
+    /**
+     * @return etag for den gzip-komprimerte utgaven av siden, som må være en annen enn for den ukomprimerte
+     */
+    static String withGzipSuffix(String etag) {
+        return etag.substring(0, etag.length() - 1) + GZIP_SUFFIX + '"';
+    }
+
+    /**
+     * @return true hvis etag er en av taggene i If-None-Match, eller If-None-Match er *
+     */
+    static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        String opaqueEtag = opaqueTag(etag);
+        for (String tag : ifNoneMatch.split(",")) {
+            String trimmed = tag.trim();
+            if ("*".equals(trimmed) || opaqueTag(trimmed).equals(opaqueEtag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 64-bits FNV-1a over tegnene.
+     */
+    static long hash(CharSequence text) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < text.length(); i++) {
+            hash = (hash ^ text.charAt(i)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    static long combine(long hash, long other) {
+        return (hash ^ other) * FNV_PRIME;
+    }
+
+    /**
+     * Svak sammenligning: W/ og anførselstegn teller ikke.
+     */
+    private static String opaqueTag(String tag) {
+        String opaque = tag.startsWith("W/") ? tag.substring(2) : tag;
+        if (opaque.length() >= 2 && opaque.charAt(0) == '"' && opaque.charAt(opaque.length() - 1) == '"') {
+            opaque = opaque.substring(1, opaque.length() - 1);
+        }
+        return opaque;
+    }
+}
@@ -0,0 +1,63 @@
+package no.nav.innholdshenter.filter;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Markupen til ett fragment kodet i ett tegnsett. Placeholdere som varierer per side, som {{fragment.title}} og
+ * {{applicationName}}, holdes utenfor slik at resten kan kodes én gang per versjon av fragmentene.
+ */
+final class EncodedFragment {
+
+    private final List<Object> parts;
+
+    private EncodedFragment(List<Object> parts) {
+        this.parts = parts;
+    }
+
+    /**
+     * @param pagePlaceholders navnene på placeholderne som settes inn per side
+     */
+    static EncodedFragment encode(String markup, String encoding, Set<String> pagePlaceholders) throws UnsupportedEncodingException {
+        List<Object> parts = new ArrayList<>();
+        try {
+            PlaceholderReplacer.scan(markup, pagePlaceholders::contains, new PlaceholderReplacer.Sink() {
+                @Override
+                public void literal(String text, int start, int end) throws UnsupportedEncodingException {
+                    if (start < end) {
+                        parts.add(new SharedSegment(text.substring(start, end).getBytes(encoding)));
+                    }
+                }
+
+                @Override
+                public void placeholder(String name) {
+                    parts.add(name);
+                }
+            });
+        } catch (UnsupportedEncodingException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return new EncodedFragment(parts);
+    }
+
+    /**
+     * Legger fragmentet til output. Placeholdere uten verdi i pageReplacements skrives som de står.
+     */
+    void writeTo(SegmentedOutput output, Map<String, String> pageReplacements) throws IOException {
+        for (Object part : parts) {
+            if (part instanceof SharedSegment) {
+                output.appendShared((SharedSegment) part);
+            } else {
+                String replacement = pageReplacements.get(part);
+                output.appendText(replacement != null ? replacement
+                        : DecoratorFilterUtils.PLACEHOLDER_START + part + DecoratorFilterUtils.PLACEHOLDER_END);
+            }
+        }
+    }
+}
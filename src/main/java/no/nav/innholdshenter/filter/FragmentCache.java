@@ -0,0 +1,128 @@
+package no.nav.innholdshenter.filter;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fragmentsidene fra Enonic splittet opp i markup per fragment. En side parses bare når innholdet
+ * ContentRetriever gir for URL-en er et annet enn sist, dvs. når Enonic har publisert noe nytt.
+ */
+class FragmentCache {
+
+    static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    private final AtomicLong versions = new AtomicLong();
+    private final Map<String, CachedSplit> entries;
+    private volatile int maxActiveItems = HtmlFragments.DEFAULT_MAX_ACTIVE_ITEMS;
+
+    FragmentCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    FragmentCache(final int maxEntries) {
+        entries = new LinkedHashMap<String, CachedSplit>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedSplit> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    HtmlFragments getFragments(String url, String pageContent, List<String> fragmentNames) {
+        CachedSplit entry;
+        synchronized (entries) {
+            entry = entries.get(url);
+        }
+        if (entry != null && entry.isCreatedFrom(pageContent)) {
+            return entry.fragments;
+        }
+
+        Document document = Jsoup.parse(pageContent);
+        HtmlFragments fragments = new HtmlFragments(split(document, fragmentNames), versions.incrementAndGet(),
+                preloadLinks(document, fragmentNames), maxActiveItems);
+        synchronized (entries) {
+            entries.put(url, new CachedSplit(pageContent, fragments));
+        }
+        return fragments;
+    }
+
+    /**
+     * @return fragmentene sist hentet fra url, eller null hvis url ikke er i cachen
+     */
+    HtmlFragments getLastKnownFragments(String url) {
+        synchronized (entries) {
+            CachedSplit entry = entries.get(url);
+            return entry == null ? null : entry.fragments;
+        }
+    }
+
+    /**
+     * Gjelder fragmenter som hentes etter at den er satt.
+     */
+    void setMaxActiveItems(int maxActiveItems) {
+        this.maxActiveItems = maxActiveItems;
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    static Map<String, String> split(Document document, List<String> fragmentNames) {
+        Map<String, String> markup = new HashMap<>();
+        for (String fragmentName : fragmentNames) {
+            Element element = document.getElementById(fragmentName);
+            if (element != null) {
+                markup.put(fragmentName, element.html());
+            }
+        }
+        return markup;
+    }
+
+    /**
+     * @return verdier til Link-headere som ber nettleseren hente stilark og skript fragmentene viser til, i den
+     * rekkefølgen de står i fragmentene
+     */
+    private static List<String> preloadLinks(Document document, List<String> fragmentNames) {
+        Set<String> links = new LinkedHashSet<>();
+        for (String fragmentName : fragmentNames) {
+            Element element = document.getElementById(fragmentName);
+            if (element == null) {
+                continue;
+            }
+            for (Element asset : element.select("link[rel=stylesheet][href], script[src]")) {
+                boolean stylesheet = "link".equals(asset.tagName());
+                String url = asset.attr(stylesheet ? "href" : "src").trim();
+                if (!url.isEmpty() && url.indexOf('>') == -1) {
+                    links.add('<' + url + ">; rel=preload; as=" + (stylesheet ? "style" : "script"));
+                }
+            }
+        }
+        return new ArrayList<>(links);
+    }
+
+    private static final class CachedSplit {
+        private final String pageContent;
+        private final HtmlFragments fragments;
+
+        private CachedSplit(String pageContent, HtmlFragments fragments) {
+            this.pageContent = pageContent;
+            this.fragments = fragments;
+        }
+
+        private boolean isCreatedFrom(String content) {
+            return pageContent == content || pageContent.equals(content);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package no.nav.innholdshenter.filter;
 
 import no.nav.innholdshenter.common.ContentRetriever;
+import no.nav.innholdshenter.tools.RouteMatcher;
 import org.apache.http.client.utils.URIBuilder;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
@@ -11,11 +12,7 @@ import javax.servlet.http.HttpServletRequest;
 import java.net.URISyntaxException;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
 
-import static no.nav.innholdshenter.filter.DecoratorFilterUtils.createMatcher;
-import static no.nav.innholdshenter.filter.DecoratorFilterUtils.extractMetaTag;
-import static no.nav.innholdshenter.filter.DecoratorFilterUtils.getRequestUriOrAlternativePathBasedOnMetaTag;
 import static no.nav.innholdshenter.filter.DecoratorFilterUtils.isFragmentSubmenu;
 import static org.apache.commons.lang3.StringUtils.isEmpty;
 
@@ -30,13 +27,24 @@ public class FragmentFetcher {
     private List<String> fragmentNames;
     private Map<String, String> additionalOptions;
     private String subMenuPath;
-    private final HttpServletRequest request;
-    private final String originalResponseString;
+    private final DecoratorRequestContext context;
     private ExtendedConfiguration extendedConfiguration;
+    private final FragmentCache fragmentCache;
 
+    /**
+     * @deprecated fragmentene hentes av {@link DecoratorFilter}, som parser hver versjon av fragmentsiden én gang
+     */
+    @Deprecated
     public FragmentFetcher(ContentRetriever contentRetriever, String fragmentsUrl, String applicationName, boolean shouldIncludeActiveItem,
                            String subMenuPath, List<String> fragmentNames, Map<String, String> additionalOptions, HttpServletRequest request,
                            String originalResponseString, ExtendedConfiguration extendedConfiguration) {
+        this(contentRetriever, fragmentsUrl, applicationName, shouldIncludeActiveItem, subMenuPath, fragmentNames, additionalOptions,
+                new DecoratorRequestContext(request, originalResponseString), extendedConfiguration, new FragmentCache());
+    }
+
+    FragmentFetcher(ContentRetriever contentRetriever, String fragmentsUrl, String applicationName, boolean shouldIncludeActiveItem,
+                    String subMenuPath, List<String> fragmentNames, Map<String, String> additionalOptions,
+                    DecoratorRequestContext context, ExtendedConfiguration extendedConfiguration, FragmentCache fragmentCache) {
         this.contentRetriever = contentRetriever;
         this.fragmentsUrl = fragmentsUrl;
         this.applicationName = applicationName;
@@ -44,21 +52,37 @@ public class FragmentFetcher {
         this.fragmentNames = fragmentNames;
         this.additionalOptions = additionalOptions;
         this.subMenuPath = subMenuPath;
-        this.request = request;
-        this.originalResponseString = originalResponseString;
+        this.context = context;
         this.extendedConfiguration = extendedConfiguration;
+        this.fragmentCache = fragmentCache;
     }
 
+    /**
+     * @deprecated parser hele fragmentsiden ved hvert kall; {@link DecoratorFilter} bruker fragmentene fra cachen
+     */
+    @Deprecated
     public Document fetchHtmlFragments() {
-        String url = null;
+        return Jsoup.parse(contentRetriever.getPageContent(getUrl()));
+    }
+
+    /**
+     * Leser ikke noe fra forespørselen, og kan derfor kalles fra en annen tråd.
+     */
+    HtmlFragments fetchHtmlFragments(String url) {
+        String pageContent = contentRetriever.getPageContent(url);
+        return fragmentCache.getFragments(url, pageContent, fragmentNames);
+    }
+
+    /**
+     * @return URL-en fragmentene hentes fra for denne forespørselen, eller null hvis den ikke kunne bygges
+     */
+    String getUrl() {
         try {
-            url = buildUrl();
+            return buildUrl();
         } catch (URISyntaxException e) {
             logger.warn("Exception when building URL", e);
+            return null;
         }
-
-        String pageContent = contentRetriever.getPageContent(url);
-        return Jsoup.parse(pageContent);
     }
 
     private String buildUrl() throws URISyntaxException {
@@ -72,7 +96,7 @@ public class FragmentFetcher {
             addActiveItem(urlBuilder);
         }
 
-        String role = extractMetaTag(originalResponseString, "Brukerstatus");
+        String role = context.getMetaTag("Brukerstatus");
         if (!isEmpty(role)) {
             urlBuilder.addParameter("userrole", role);
         }
@@ -93,15 +117,13 @@ public class FragmentFetcher {
     }
 
     private void addApplicationName(URIBuilder urlBuilder) {
-        String requestUri = request.getRequestURI();
+        String requestUri = context.getRequest().getRequestURI();
         if (extendedConfiguration != null) {
             Map<String, String> tnsValues = extendedConfiguration.getTnsValues();
-            for (String key : tnsValues.keySet()) {
-                Matcher matcher = createMatcher(key, requestUri);
-                if (matcher.matches()) {
-                    urlBuilder.addParameter("appname", tnsValues.get(key));
-                    return;
-                }
+            String key = RouteMatcher.matching(tnsValues.keySet()).firstMatchingPattern(requestUri);
+            if (key != null) {
+                urlBuilder.addParameter("appname", tnsValues.get(key));
+                return;
             }
         }
 
@@ -109,31 +131,33 @@ public class FragmentFetcher {
     }
 
     private void addActiveItem(URIBuilder urlBuilder) {
-        String requestUri = getRequestUriOrAlternativePathBasedOnMetaTag(originalResponseString, request);
+        urlBuilder.addParameter("activeitem", getActiveItem());
+    }
+
+    /**
+     * @return menypunktet som skal vises som aktivt: verdien i menuMap for siden, ellers sidens path
+     */
+    String getActiveItem() {
+        String requestUri = context.getRequestUriOrAlternativePath();
         if (extendedConfiguration != null) {
             Map<String, String> menuMap = extendedConfiguration.getMenuMap();
-            for (String key : menuMap.keySet()) {
-                Matcher matcher = createMatcher(key, requestUri);
-                if (matcher.matches()) {
-                    urlBuilder.addParameter("activeitem", menuMap.get(key));
-                    return;
-                }
+            String key = RouteMatcher.matching(menuMap.keySet()).firstMatchingPattern(requestUri);
+            if (key != null) {
+                return menuMap.get(key);
             }
         }
 
-        urlBuilder.addParameter("activeitem", requestUri);
+        return requestUri;
     }
 
     private void addSubmenuPath(URIBuilder urlBuilder) {
-        String requestUri = getRequestUriOrAlternativePathBasedOnMetaTag(originalResponseString, request);
+        String requestUri = context.getRequestUriOrAlternativePath();
         if (extendedConfiguration != null) {
             Map<String, String> subMenuPathMap = extendedConfiguration.getSubMenuPathMap();
-            for (String key : subMenuPathMap.keySet()) {
-                Matcher matcher = createMatcher(key, requestUri);
-                if (matcher.matches()) {
-                    urlBuilder.addParameter("submenu", subMenuPathMap.get(key));
-                    return;
-                }
+            String key = RouteMatcher.matching(subMenuPathMap.keySet()).firstMatchingPattern(requestUri);
+            if (key != null) {
+                urlBuilder.addParameter("submenu", subMenuPathMap.get(key));
+                return;
             }
         }
 
@@ -0,0 +1,65 @@
+package no.nav.innholdshenter.filter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Fragmenter som hentes mens applikasjonen lager responsen. URL-en bygges før applikasjonen har skrevet noe,
+ * og resultatet brukes bare hvis meta-taggene i responsen (Brukerstatus, hodeFotKey) gir samme URL. Om det traff
+ * eller ikke, meldes til {@link PrefetchRoutes} for URL-en i applikasjonen.
+ */
+class FragmentPrefetch {
+
+    private static final Logger logger = LoggerFactory.getLogger(FragmentPrefetch.class);
+
+    private final String url;
+    private final Future<HtmlFragments> fragments;
+    private final PrefetchRoutes prefetchRoutes;
+    private final String route;
+
+    private FragmentPrefetch(String url, Future<HtmlFragments> fragments, PrefetchRoutes prefetchRoutes, String route) {
+        this.url = url;
+        this.fragments = fragments;
+        this.prefetchRoutes = prefetchRoutes;
+        this.route = route;
+    }
+
+    /**
+     * @return null hvis alle trådene er opptatt og køen er full; da hentes fragmentene som før
+     */
+    static FragmentPrefetch start(ExecutorService executor, FragmentFetcher fragmentFetcher, PrefetchRoutes prefetchRoutes, String route) {
+        String url = fragmentFetcher.getUrl();
+        try {
+            return new FragmentPrefetch(url, executor.submit(() -> fragmentFetcher.fetchHtmlFragments(url)), prefetchRoutes, route);
+        } catch (RejectedExecutionException e) {
+            logger.debug("Henter ikke fragmenter på forhånd, køen er full: {}", url);
+            return null;
+        }
+    }
+
+    /**
+     * @return fragmentene som hentes, eller null hvis de hentes fra en annen URL enn url
+     */
+    Future<HtmlFragments> getFragments(String url) {
+        if (!Objects.equals(this.url, url)) {
+            logger.debug("Responsen ga en annen fragment-URL enn forespørselen, henter {} på nytt", url);
+            prefetchRoutes.miss(route);
+            cancel();
+            return null;
+        }
+        prefetchRoutes.hit(route);
+        return fragments;
+    }
+
+    /**
+     * Hentingen stoppes ikke hvis den er i gang, siden resultatet uansett havner i cachen.
+     */
+    void cancel() {
+        fragments.cancel(false);
+    }
+}
@@ -0,0 +1,66 @@
+package no.nav.innholdshenter.filter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Byggesteinene i en gzip-strøm satt sammen av segmenter som er komprimert hver for seg. Hvert segment
+ * komprimeres med nullstilt ordbok og avsluttes med sync flush, slik at det verken refererer til bytes før seg
+ * eller avslutter strømmen. Strømmen avsluttes med en tom siste blokk, CRC32 og lengden.
+ */
+final class GzipSegments {
+
+    static final int COMPRESSION_LEVEL = Deflater.DEFAULT_COMPRESSION;
+    static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    /**
+     * En siste blokk med faste Huffman-koder og bare slutt-på-blokk.
+     */
+    private static final byte[] FINAL_EMPTY_BLOCK = {0x03, 0x00};
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private GzipSegments() {
+    }
+
+    static Deflater createDeflater() {
+        return new Deflater(COMPRESSION_LEVEL, true);
+    }
+
+    /**
+     * @return en strøm der {@link OutputStream#flush()} avslutter det som er skrevet med sync flush
+     */
+    static DeflaterOutputStream createDeflaterStream(OutputStream out, Deflater deflater) {
+        return new DeflaterOutputStream(out, deflater, BUFFER_SIZE, true);
+    }
+
+    static byte[] deflate(byte[] bytes) {
+        Deflater deflater = createDeflater();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 3 + 16);
+            DeflaterOutputStream deflaterStream = createDeflaterStream(out, deflater);
+            deflaterStream.write(bytes);
+            deflaterStream.flush();
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static void writeTrailer(OutputStream out, long crc, long uncompressedLength) throws IOException {
+        out.write(FINAL_EMPTY_BLOCK);
+        writeIntLittleEndian(out, crc);
+        writeIntLittleEndian(out, uncompressedLength);
+    }
+
+    private static void writeIntLittleEndian(OutputStream out, long value) throws IOException {
+        for (int i = 0; i < 4; i++) {
+            out.write((int) (value >>> (8 * i)) & 0xff);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package no.nav.innholdshenter.filter;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Markupen til hvert fragment i én versjon av fragmentsiden fra Enonic, allerede plukket ut og serialisert.
+ * Fragmenter som ikke finnes i siden er ikke med.
+ */
+class HtmlFragments {
+
+    static final int DEFAULT_MAX_ACTIVE_ITEMS = 32;
+    static final HtmlFragments EMPTY = new HtmlFragments(Collections.<String, String>emptyMap(), 0);
+
+    private final Map<String, String> markup;
+    private final long version;
+    private final List<String> preloadLinks;
+    private final int maxActiveItems;
+    private final HtmlFragments unmarked;
+    private final ConcurrentMap<String, ActiveItemIndex> activeItemIndexes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Map<String, EncodedFragment>> encodedFragments = new ConcurrentHashMap<>();
+    private volatile Long contentHash;
+    private final Map<String, HtmlFragments> withActiveItem = new LinkedHashMap<String, HtmlFragments>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, HtmlFragments> eldest) {
+            return size() > maxActiveItems;
+        }
+    };
+
+    HtmlFragments(Map<String, String> markup, long version) {
+        this(markup, version, Collections.<String>emptyList(), DEFAULT_MAX_ACTIVE_ITEMS);
+    }
+
+    /**
+     * @param preloadLinks verdier til Link-headere for ressursene fragmentene viser til
+     * @param maxActiveItems antall varianter med markert aktivt menypunkt som holdes på
+     */
+    HtmlFragments(Map<String, String> markup, long version, List<String> preloadLinks, int maxActiveItems) {
+        this(markup, version, preloadLinks, maxActiveItems, null);
+    }
+
+    private HtmlFragments(Map<String, String> markup, long version, List<String> preloadLinks, int maxActiveItems,
+                          HtmlFragments unmarked) {
+        this.markup = Collections.unmodifiableMap(markup);
+        this.version = version;
+        this.preloadLinks = Collections.unmodifiableList(preloadLinks);
+        this.maxActiveItems = maxActiveItems;
+        this.unmarked = unmarked;
+    }
+
+    /**
+     * @return fragmentene med lenkene til aktivt menypunkt markert, samme versjon. Den samme instansen gis tilbake
+     * for samme activeItem så lenge den er blant de maxActiveItems sist brukte, slik at fragmentene ikke kodes og
+     * komprimeres på nytt for hver forespørsel. Fragmenter uten lenke til aktivt menypunkt deles med de umarkerte
+     * fragmentene, så hver variant holder bare på det som faktisk er markert
+     */
+    HtmlFragments withActiveItem(String activeItem) {
+        synchronized (withActiveItem) {
+            HtmlFragments markedFragments = withActiveItem.get(activeItem);
+            if (markedFragments != null) {
+                return markedFragments;
+            }
+        }
+        HtmlFragments markedFragments = markActiveItem(activeItem);
+        synchronized (withActiveItem) {
+            HtmlFragments existing = withActiveItem.putIfAbsent(activeItem, markedFragments);
+            return existing != null ? existing : markedFragments;
+        }
+    }
+
+    private HtmlFragments markActiveItem(String activeItem) {
+        Map<String, String> marked = new HashMap<>(markup.size());
+        for (Map.Entry<String, String> fragment : markup.entrySet()) {
+            marked.put(fragment.getKey(), getActiveItemIndex(fragment.getKey()).markActiveItem(fragment.getValue(), activeItem));
+        }
+        HtmlFragments markedFragments = new HtmlFragments(marked, version, preloadLinks, 0, this);
+        markedFragments.contentHash = ETags.combine(getContentHash(), ETags.hash(String.valueOf(activeItem)));
+        return markedFragments;
+    }
+
+    /**
+     * @return hash av markupen til alle fragmentene, lik på tvers av noder og omstarter, i motsetning til versjonen
+     */
+    long getContentHash() {
+        Long hash = contentHash;
+        if (hash == null) {
+            long combined = ETags.hash("");
+            for (Map.Entry<String, String> fragment : new TreeMap<>(markup).entrySet()) {
+                combined = ETags.combine(combined, ETags.hash(fragment.getKey()));
+                combined = ETags.combine(combined, ETags.hash(fragment.getValue()));
+            }
+            hash = combined;
+            contentHash = hash;
+        }
+        return hash;
+    }
+
+    private ActiveItemIndex getActiveItemIndex(String fragmentName) {
+        ActiveItemIndex activeItemIndex = activeItemIndexes.get(fragmentName);
+        if (activeItemIndex == null) {
+            activeItemIndex = ActiveItemIndex.build(markup.get(fragmentName));
+            activeItemIndexes.putIfAbsent(fragmentName, activeItemIndex);
+        }
+        return activeItemIndex;
+    }
+
+    /**
+     * @return fragmentene kodet i tegnsettet, kodet første gang de trengs i denne versjonen
+     */
+    Map<String, EncodedFragment> getEncoded(String encoding) throws UnsupportedEncodingException {
+        Map<String, EncodedFragment> encoded = encodedFragments.get(encoding);
+        if (encoded == null) {
+            Map<String, EncodedFragment> unmarkedEncoded = unmarked != null ? unmarked.getEncoded(encoding) : null;
+            encoded = new HashMap<>(markup.size());
+            for (Map.Entry<String, String> fragment : markup.entrySet()) {
+                // ActiveItemIndex gir tilbake samme instans når fragmentet ikke har noe å markere
+                boolean unchanged = unmarkedEncoded != null && unmarked.get(fragment.getKey()) == fragment.getValue();
+                encoded.put(fragment.getKey(), unchanged ? unmarkedEncoded.get(fragment.getKey())
+                        : EncodedFragment.encode(fragment.getValue(), encoding, MarkupMerger.PAGE_PLACEHOLDERS));
+            }
+            encodedFragments.putIfAbsent(encoding, encoded);
+        }
+        return encoded;
+    }
+
+    /**
+     * @return markup inne i elementet med id lik fragmentnavnet, eller null hvis fragmentet mangler
+     */
+    String get(String fragmentName) {
+        return markup.get(fragmentName);
+    }
+
+    boolean contains(String fragmentName) {
+        return markup.containsKey(fragmentName);
+    }
+
+    List<String> getPreloadLinks() {
+        return preloadLinks;
+    }
+
+    /**
+     * @return øker hver gang innholdet fra Enonic endres, 0 for tomme fragmenter
+     */
+    long getVersion() {
+        return version;
+    }
+}
@@ -0,0 +1,157 @@
+package no.nav.innholdshenter.filter;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.apache.commons.lang3.StringEscapeUtils.unescapeHtml4;
+
+/**
+ * Meta-tagger og tittel fra head i applikasjonens markup. Leses i én gjennomgang som stopper ved
+ * {@code </head>} eller {@code <body>}, uten å parse resten av siden.
+ */
+class HtmlHead {
+
+    private static final Pattern ATTRIBUTE = Pattern.compile("([^\\s=/>\"']+)(?:\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)'|([^\\s>]+)))?");
+
+    private final Map<String, String> metaTags;
+    private final String title;
+
+    private HtmlHead(Map<String, String> metaTags, String title) {
+        this.metaTags = metaTags;
+        this.title = title;
+    }
+
+    /**
+     * @return content i første meta-tagg med gitt name (uavhengig av store og små bokstaver), eller null
+     */
+    String getMetaTag(String name) {
+        return metaTags.get(name.toLowerCase());
+    }
+
+    /**
+     * @return teksten i første title-element med normaliserte mellomrom, eller tom streng
+     */
+    String getTitle() {
+        return title == null ? "" : title;
+    }
+
+    static HtmlHead scan(String html) {
+        Map<String, String> metaTags = new HashMap<>();
+        String title = null;
+
+        int i = html.indexOf('<');
+        while (i >= 0) {
+            if (html.startsWith("<!--", i)) {
+                int endOfComment = html.indexOf("-->", i + 4);
+                if (endOfComment < 0) {
+                    break;
+                }
+                i = html.indexOf('<', endOfComment + 3);
+                continue;
+            }
+
+            int nameEnd = i + 1;
+            while (nameEnd < html.length() && (Character.isLetterOrDigit(html.charAt(nameEnd)) || (nameEnd == i + 1 && html.charAt(nameEnd) == '/'))) {
+                nameEnd++;
+            }
+            String tagName = html.substring(i + 1, nameEnd).toLowerCase();
+            if ("/head".equals(tagName) || "body".equals(tagName)) {
+                break;
+            }
+
+            int tagEnd = endOfTag(html, nameEnd);
+            if (tagEnd < 0) {
+                break;
+            }
+
+            int next = tagEnd + 1;
+            if ("meta".equals(tagName)) {
+                addMetaTag(metaTags, html.substring(nameEnd, tagEnd));
+            } else if ("title".equals(tagName) || "script".equals(tagName) || "style".equals(tagName)) {
+                int endTag = indexOfIgnoreCase(html, "</" + tagName, next);
+                if (endTag < 0) {
+                    break;
+                }
+                if (title == null && "title".equals(tagName)) {
+                    title = normalizeWhitespace(unescapeHtml4(html.substring(next, endTag)));
+                }
+                next = endTag;
+            }
+            i = html.indexOf('<', next);
+        }
+
+        return new HtmlHead(metaTags, title);
+    }
+
+    private static void addMetaTag(Map<String, String> metaTags, String attributes) {
+        String name = null;
+        String content = null;
+        Matcher matcher = ATTRIBUTE.matcher(attributes);
+        while (matcher.find()) {
+            String attribute = matcher.group(1).toLowerCase();
+            if ("name".equals(attribute)) {
+                name = attributeValue(matcher);
+            } else if ("content".equals(attribute)) {
+                content = attributeValue(matcher);
+            }
+        }
+        if (name != null && !metaTags.containsKey(name.toLowerCase())) {
+            metaTags.put(name.toLowerCase(), content == null ? "" : unescapeHtml4(content));
+        }
+    }
+
+    private static String attributeValue(Matcher matcher) {
+        for (int group = 2; group <= 4; group++) {
+            if (matcher.group(group) != null) {
+                return matcher.group(group);
+            }
+        }
+        return "";
+    }
+
+    private static int endOfTag(String html, int from) {
+        char quote = 0;
+        for (int i = from; i < html.length(); i++) {
+            char c = html.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == '>') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOfIgnoreCase(String html, String target, int from) {
+        for (int i = html.indexOf('<', from); i >= 0; i = html.indexOf('<', i + 1)) {
+            if (html.regionMatches(true, i, target, 0, target.length())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String normalizeWhitespace(String text) {
+        StringBuilder normalized = new StringBuilder(text.length());
+        boolean lastWasWhitespace = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c) || c == '\u00a0') {
+                if (!lastWasWhitespace) {
+                    normalized.append(' ');
+                }
+                lastWasWhitespace = true;
+            } else {
+                normalized.append(c);
+                lastWasWhitespace = false;
+            }
+        }
+        return normalized.toString().trim();
+    }
+}
@@ -1,121 +1,185 @@
 package no.nav.innholdshenter.filter;
 
-import org.jsoup.Jsoup;
+import no.nav.innholdshenter.tools.RouteMatcher;
 import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
 import org.slf4j.Logger;
 
 import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.regex.Matcher;
+import java.util.Map;
+import java.util.Set;
 
 import static no.nav.innholdshenter.filter.DecoratorFilterUtils.*;
 import static org.slf4j.LoggerFactory.getLogger;
 
 public class MarkupMerger {
 
+    private static final String SUBMENU = "submenu";
+    private static final String APPLICATION_NAME = "applicationName";
+    private static final String TITLE = PLACEHOLDER_PREFIX + "title";
+    static final Set<String> PAGE_PLACEHOLDERS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(TITLE, APPLICATION_NAME)));
+
     private final List<String> noSubmenuPatterns;
     private List<String> fragmentNames;
-    private final String originalResponseString;
-    private Document htmlFragments;
+    private HtmlFragments htmlFragments;
     private String applicationName;
-    private final HttpServletRequest request;
+    private final DecoratorRequestContext context;
     private static final Logger logger = getLogger(MarkupMerger.class);
 
-    public MarkupMerger(List<String> fragmentNames, List<String> noSubmenuPatterns, String originalResponseString, Document htmlFragments, HttpServletRequest request, String applicationName) {
+    /**
+     * @deprecated {@link DecoratorFilter} fletter med fragmentene fra cachen, uten å splitte fragmentsiden for hver side
+     */
+    @Deprecated
+    public MarkupMerger(List<String> fragmentNames, List<String> noSubmenuPatterns, String originalResponseString, Document htmlFragments,
+                        HttpServletRequest request, String applicationName) {
+        this(fragmentNames, noSubmenuPatterns, new HtmlFragments(FragmentCache.split(htmlFragments, fragmentNames), 0),
+                new DecoratorRequestContext(request, originalResponseString), applicationName);
+    }
+
+    MarkupMerger(List<String> fragmentNames, List<String> noSubmenuPatterns, HtmlFragments htmlFragments, DecoratorRequestContext context, String applicationName) {
         this.fragmentNames = fragmentNames;
         this.noSubmenuPatterns = noSubmenuPatterns;
-        this.originalResponseString = originalResponseString;
         this.applicationName = applicationName;
         this.htmlFragments = htmlFragments;
-        this.request = request;
+        this.context = context;
     }
 
     public String merge() {
-        String responseString = originalResponseString;
-        for (String fragmentName : fragmentNames) {
-            Element element = htmlFragments.getElementById(fragmentName);
-            if (elementIsNotFoundInResponseFromEnonic(element)) {
-                logger.error(fragmentName + " ble ikke funnet i responsen fra Enonic. Undersøk om noe er fjernet fra ressursen i enonic (Appressurser / common-html).");
-                responseString = responseString.replace(createPlaceholder(fragmentName), "");
-                continue;
-            }
-
-            if (isFragmentSubmenu(fragmentName)) {
-                responseString = mergeSubmenuFragment(responseString, fragmentName, element);
-            } else {
-                responseString = mergeFragment(responseString, fragmentName, element.html());
-            }
+        Map<String, String> fragmentMarkup = fragmentMarkup(fragmentNames, htmlFragments);
+        boolean removeSubmenu = shouldRemoveSubmenu();
+        if (removeSubmenu) {
+            fragmentMarkup.put(SUBMENU, "");
         }
 
-        responseString = extractAndInjectTitle(responseString);
-        responseString = extractAndInjectApplicationName(responseString);
-        checkForUnresolvedPlaceholders(responseString);
-        return responseString;
+        return PlaceholderReplacer.replace(applicationMarkup(removeSubmenu),
+                createReplacements(fragmentMarkup, context.getTitle(), applicationName));
     }
 
-    private boolean elementIsNotFoundInResponseFromEnonic(Element element) {
-        return element == null;
+    private boolean shouldRemoveSubmenu() {
+        return fragmentNames.contains(SUBMENU) && htmlFragments.contains(SUBMENU) && requestUriMatchesNoSubmenuPattern();
     }
 
-    private String extractAndInjectTitle(String responseString) {
-        Document document = Jsoup.parse(responseString);
-        String title = document.title();
-        return responseString.replace(createPlaceholder("title"), title);
+    /**
+     * Som {@link #merge()}, men skriver siden som segmenter der fragmentene er kodet på forhånd og deles mellom forespørsler.
+     */
+    void mergeTo(SegmentedOutput output) throws IOException {
+        Map<String, String> fragmentMarkup = fragmentMarkup(fragmentNames, htmlFragments);
+        Map<String, String> pageReplacements = createPageReplacements(context.getTitle(), applicationName);
+        Map<String, EncodedFragment> encodedFragments = htmlFragments.getEncoded(output.getEncoding());
+        boolean removeSubmenu = shouldRemoveSubmenu();
+
+        PlaceholderReplacer.scan(applicationMarkup(removeSubmenu),
+                name -> fragmentName(name, fragmentMarkup) != null || pageReplacements.containsKey(name),
+                new PlaceholderReplacer.Sink() {
+                    @Override
+                    public void literal(String markup, int start, int end) throws IOException {
+                        output.appendText(markup, start, end);
+                    }
+
+                    @Override
+                    public void placeholder(String name) throws IOException {
+                        String fragmentName = fragmentName(name, fragmentMarkup);
+                        if (fragmentName == null) {
+                            output.appendText(pageReplacements.get(name));
+                            return;
+                        }
+                        EncodedFragment encodedFragment = encodedFragments.get(fragmentName);
+                        if (encodedFragment != null && !(removeSubmenu && SUBMENU.equals(fragmentName))) {
+                            encodedFragment.writeTo(output, pageReplacements);
+                        }
+                    }
+                });
     }
 
-    private String extractAndInjectApplicationName(String responseString) {
-        if (applicationName == null || applicationName.isEmpty()) {
-            return responseString;
-        }
-        return responseString.replace("{{applicationName}}", applicationName);
+    List<String> getFragmentNames() {
+        return fragmentNames;
     }
 
-    private void checkForUnresolvedPlaceholders(String responseString) {
-        Matcher matcher = createMatcher(PLACEHOLDER_REGEX, responseString);
-        if (matcher.matches()) {
-            logger.error("Fant unresolved placeholder " + matcher.group(1) + " i applikasjonens markup.");
-        }
+    HtmlFragments getHtmlFragments() {
+        return htmlFragments;
     }
 
-    private String mergeSubmenuFragment(String responseString, String fragmentName, Element element) {
-        String mergedResponseString = responseString;
-        if (requestUriMatchesNoSubmenuPattern()) {
-            mergedResponseString = removeSubmenuAndExpandGrid(mergedResponseString);
-        } else {
-            mergedResponseString = mergeFragment(mergedResponseString, fragmentName, element.html());
-        }
-        return mergedResponseString;
+    DecoratorRequestContext getContext() {
+        return context;
     }
 
-    private String removeSubmenuAndExpandGrid(String mergedResponseString) {
-        Document document = Jsoup.parse(mergedResponseString);
-        Element maincontent = document.getElementById("maincontent");
-        Element row = maincontent.getElementsByClass("row").first();
+    private static String fragmentName(String placeholderName, Map<String, String> fragmentMarkup) {
+        if (!placeholderName.startsWith(PLACEHOLDER_PREFIX)) {
+            return null;
+        }
+        String fragmentName = placeholderName.substring(PLACEHOLDER_PREFIX.length());
+        return fragmentMarkup.containsKey(fragmentName) ? fragmentName : null;
+    }
 
-        Element subMenu = row.child(0);
-        Element application = row.child(1);
+    /**
+     * Markup for hvert fragment, eller tom streng for fragmenter som mangler i responsen fra Enonic. Dekoreres siden
+     * uten fragmenter, fordi de ikke kom innen budsjettet, fjernes placeholderne uten at det logges.
+     */
+    static Map<String, String> fragmentMarkup(List<String> fragmentNames, HtmlFragments htmlFragments) {
+        Map<String, String> fragmentMarkup = new HashMap<>();
+        for (String fragmentName : fragmentNames) {
+            String markup = htmlFragments.get(fragmentName);
+            if (markup == null) {
+                if (htmlFragments != HtmlFragments.EMPTY) {
+                    logger.error(fragmentName + " ble ikke funnet i responsen fra Enonic. Undersøk om noe er fjernet fra ressursen i enonic (Appressurser / common-html).");
+                }
+                fragmentMarkup.put(fragmentName, "");
+            } else {
+                fragmentMarkup.put(fragmentName, markup);
+            }
+        }
+        return fragmentMarkup;
+    }
 
-        subMenu.remove();
-        application.removeClass(application.className());
-        application.addClass("col-md-12");
+    /**
+     * Erstatningene for alle placeholderne i en side: fragmentene, {{fragment.title}} og {{applicationName}}.
+     * Tittel og applikasjonsnavn settes også inn i fragmentene, slik at de kan brukes i markup fra Enonic.
+     */
+    static Map<String, String> createReplacements(Map<String, String> fragmentMarkup, String title, String applicationName) {
+        Map<String, String> pageReplacements = createPageReplacements(title, applicationName);
+        Map<String, String> replacements = new HashMap<>(pageReplacements);
+        for (Map.Entry<String, String> fragment : fragmentMarkup.entrySet()) {
+            String markup = fragment.getValue();
+            if (markup.contains(PLACEHOLDER_START)) {
+                markup = PlaceholderReplacer.replace(markup, pageReplacements);
+            }
+            replacements.put(PLACEHOLDER_PREFIX + fragment.getKey(), markup);
+        }
+        return replacements;
+    }
 
-        return document.html();
+    private static Map<String, String> createPageReplacements(String title, String applicationName) {
+        Map<String, String> pageReplacements = new HashMap<>();
+        pageReplacements.put(TITLE, title);
+        if (applicationName != null && !applicationName.isEmpty()) {
+            pageReplacements.put(APPLICATION_NAME, applicationName);
+        }
+        return pageReplacements;
     }
 
-    private String mergeFragment(String responseString, String fragmentName, String elementMarkup) {
-        return responseString.replace(createPlaceholder(fragmentName), elementMarkup);
+    /**
+     * @return applikasjonens markup, uten submenykolonnen i griden hvis submenyen skal fjernes
+     */
+    private String applicationMarkup(boolean removeSubmenu) {
+        String markup = context.getOriginalResponseString();
+        if (!removeSubmenu) {
+            return markup;
+        }
+        String withoutSubmenu = SubmenuGrid.removeSubmenu(markup);
+        if (withoutSubmenu == null) {
+            logger.warn("Fant ikke griden i #maincontent, så submenyen kunne ikke fjernes for {}", context.getRequestUriOrAlternativePath());
+            return markup;
+        }
+        return withoutSubmenu;
     }
 
     private boolean requestUriMatchesNoSubmenuPattern() {
-        String uriToMatch = getRequestUriOrAlternativePathBasedOnMetaTag(originalResponseString, request);
-        for (String noSubmenuPattern : noSubmenuPatterns) {
-            Matcher matcher = createMatcher(noSubmenuPattern, uriToMatch);
-            if (matcher.matches()) {
-                return true;
-            }
-        }
-        return false;
+        return RouteMatcher.matching(noSubmenuPatterns).matches(context.getRequestUriOrAlternativePath());
     }
 
 }
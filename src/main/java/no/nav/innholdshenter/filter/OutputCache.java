@@ -0,0 +1,129 @@
+package no.nav.innholdshenter.filter;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ferdig dekorerte og kodede sider, slik at sider som er like for alle anonyme brukere kan skrives uten at
+ * applikasjonen kjøres. En side gjelder så lenge fragmentene den ble dekorert med er siste versjon. Sidene som
+ * er brukt minst nylig kastes når summen av bytes går over maxBytes.
+ */
+class OutputCache {
+
+    static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, Page> pages = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private final AtomicLong found = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stale = new AtomicLong();
+
+    OutputCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return siden, eller null hvis den ikke er cachet. Er fragmentene endret, må siden fjernes med
+     * {@link #removeStale(String, Page)}, slik at den ikke telles som treff
+     */
+    Page get(String key) {
+        Page page;
+        synchronized (pages) {
+            page = pages.get(key);
+        }
+        (page == null ? misses : found).incrementAndGet();
+        return page;
+    }
+
+    /**
+     * Sider som alene er større enn en firedel av cachen, caches ikke.
+     */
+    void put(String key, Page page) {
+        if (page.body.length > maxBytes / 4) {
+            return;
+        }
+        synchronized (pages) {
+            Page previous = pages.put(key, page);
+            if (previous != null) {
+                bytes -= previous.body.length;
+            }
+            bytes += page.body.length;
+            Iterator<Page> leastRecentlyUsed = pages.values().iterator();
+            while (bytes > maxBytes && leastRecentlyUsed.hasNext()) {
+                bytes -= leastRecentlyUsed.next().body.length;
+                leastRecentlyUsed.remove();
+            }
+        }
+    }
+
+    /**
+     * Fjerner siden fordi fragmentene er endret, hvis den fortsatt er page og ikke er byttet ut av en annen tråd.
+     */
+    void removeStale(String key, Page page) {
+        stale.incrementAndGet();
+        synchronized (pages) {
+            if (pages.remove(key, page)) {
+                bytes -= page.body.length;
+            }
+        }
+    }
+
+    long getBytes() {
+        synchronized (pages) {
+            return bytes;
+        }
+    }
+
+    /**
+     * @return sider som ble funnet og fortsatt gjaldt
+     */
+    long getHits() {
+        return found.get() - stale.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return sider som ble funnet, men var dekorert med fragmenter som er endret
+     */
+    long getStale() {
+        return stale.get();
+    }
+
+    /**
+     * En dekorert side med det som trengs for å skrive den på nytt, og fragment-URL-en og versjonen som avgjør om
+     * den fortsatt gjelder.
+     */
+    static final class Page {
+        final byte[] body;
+        final String contentType;
+        final String characterEncoding;
+        final Map<String, List<String>> headers;
+        final String fragmentsUrl;
+        final List<String> fragmentNames;
+        final long fragmentsVersion;
+        final String etag;
+
+        /**
+         * @param etag ETag-en filteret satte på siden, eller null
+         */
+        Page(byte[] body, String contentType, String characterEncoding, Map<String, List<String>> headers,
+             String fragmentsUrl, List<String> fragmentNames, long fragmentsVersion, String etag) {
+            this.body = body;
+            this.contentType = contentType;
+            this.characterEncoding = characterEncoding;
+            this.headers = Collections.unmodifiableMap(headers);
+            this.fragmentsUrl = fragmentsUrl;
+            this.fragmentNames = fragmentNames;
+            this.fragmentsVersion = fragmentsVersion;
+            this.etag = etag;
+        }
+    }
+}
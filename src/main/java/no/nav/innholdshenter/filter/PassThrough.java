@@ -0,0 +1,15 @@
+package no.nav.innholdshenter.filter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Avgjør første gang applikasjonen skriver til responsen om den skal skrives rett til klienten, uten buffring.
+ */
+interface PassThrough {
+
+    /**
+     * @return strømmen resten av responsen skal skrives til, eller null hvis responsen skal buffres
+     */
+    OutputStream target() throws IOException;
+}
@@ -0,0 +1,107 @@
+package no.nav.innholdshenter.filter;
+
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import static no.nav.innholdshenter.filter.DecoratorFilterUtils.PLACEHOLDER_END;
+import static no.nav.innholdshenter.filter.DecoratorFilterUtils.PLACEHOLDER_PREFIX;
+import static no.nav.innholdshenter.filter.DecoratorFilterUtils.PLACEHOLDER_START;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Erstatter alle {{...}}-placeholdere i markup i én lineær gjennomgang. Placeholdere som ikke finnes blant
+ * erstatningene blir stående, og en uløst {{fragment.*}} logges.
+ */
+final class PlaceholderReplacer {
+
+    private static final Logger logger = getLogger(PlaceholderReplacer.class);
+    private static final int MAX_PLACEHOLDER_LENGTH = 128;
+
+    private PlaceholderReplacer() {
+    }
+
+    /**
+     * @param replacements markup per placeholder-navn uten klammeparenteser, f.eks. "fragment.header"
+     */
+    static String replace(String markup, Map<String, String> replacements) {
+        StringBuilder result = new StringBuilder(estimateLength(markup, replacements));
+        replace(markup, replacements, result);
+        return result.toString();
+    }
+
+    static void replace(String markup, Map<String, String> replacements, StringBuilder result) {
+        try {
+            scan(markup, replacements::containsKey, new Sink() {
+                @Override
+                public void literal(String text, int start, int end) {
+                    result.append(text, start, end);
+                }
+
+                @Override
+                public void placeholder(String name) {
+                    result.append(replacements.get(name));
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Mottar markup bit for bit: teksten mellom placeholderne og navnet på hver placeholder som skal erstattes.
+     */
+    interface Sink {
+        void literal(String markup, int start, int end) throws IOException;
+
+        void placeholder(String name) throws IOException;
+    }
+
+    /**
+     * Deler markup i tekst og kjente placeholdere, i rekkefølge. Ukjente placeholdere regnes som tekst.
+     */
+    static void scan(String markup, Predicate<String> isKnown, Sink sink) throws IOException {
+        String unresolved = null;
+        int literalStart = 0;
+        int start = markup.indexOf(PLACEHOLDER_START);
+        while (start >= 0) {
+            int nameStart = start + PLACEHOLDER_START.length();
+            int end = markup.indexOf(PLACEHOLDER_END, nameStart);
+            if (end < 0) {
+                break;
+            }
+            if (end - nameStart > MAX_PLACEHOLDER_LENGTH) {
+                start = markup.indexOf(PLACEHOLDER_START, start + 1);
+                continue;
+            }
+            String name = markup.substring(nameStart, end);
+            if (isKnown.test(name)) {
+                sink.literal(markup, literalStart, start);
+                sink.placeholder(name);
+                literalStart = end + PLACEHOLDER_END.length();
+                start = markup.indexOf(PLACEHOLDER_START, literalStart);
+            } else {
+                if (unresolved == null && name.startsWith(PLACEHOLDER_PREFIX) && name.indexOf('{') < 0) {
+                    unresolved = name;
+                }
+                start = markup.indexOf(PLACEHOLDER_START, start + 1);
+            }
+        }
+        sink.literal(markup, literalStart, markup.length());
+
+        if (unresolved != null) {
+            logger.error("Fant unresolved placeholder " + PLACEHOLDER_START + unresolved + PLACEHOLDER_END + " i applikasjonens markup.");
+        }
+    }
+
+    private static int estimateLength(String markup, Map<String, String> replacements) {
+        long length = markup.length();
+        for (String replacement : replacements.values()) {
+            length += replacement.length();
+        }
+        return (int) Math.min(length, Integer.MAX_VALUE - 8);
+    }
+}
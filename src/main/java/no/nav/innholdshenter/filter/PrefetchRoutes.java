@@ -0,0 +1,53 @@
+package no.nav.innholdshenter.filter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * URL-er i applikasjonen der fragmentene som hentes på forhånd ikke blir brukt. Setter applikasjonen meta-tagger
+ * som endrer fragment-URL-en, som Brukerstatus, bommer forhåndshentingen hver gang og gir et ekstra kall mot Enonic.
+ * Etter {@link #MAX_MISSES} bom på rad hentes fragmentene ikke lenger på forhånd for URL-en, bortsett fra hver
+ * {@link #RETRY_INTERVAL}. forespørsel, slik at forhåndshentingen tas i bruk igjen hvis den begynner å treffe.
+ */
+class PrefetchRoutes {
+
+    static final int MAX_MISSES = 3;
+    static final int RETRY_INTERVAL = 100;
+    static final int MAX_ROUTES = 1000;
+
+    private final Map<String, Misses> misses = new LinkedHashMap<String, Misses>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Misses> eldest) {
+            return size() > MAX_ROUTES;
+        }
+    };
+
+    boolean shouldPrefetch(String route) {
+        synchronized (misses) {
+            Misses routeMisses = misses.get(route);
+            return routeMisses == null || routeMisses.inARow < MAX_MISSES || ++routeMisses.skipped % RETRY_INTERVAL == 0;
+        }
+    }
+
+    void hit(String route) {
+        synchronized (misses) {
+            misses.remove(route);
+        }
+    }
+
+    void miss(String route) {
+        synchronized (misses) {
+            Misses routeMisses = misses.get(route);
+            if (routeMisses == null) {
+                routeMisses = new Misses();
+                misses.put(route, routeMisses);
+            }
+            routeMisses.inARow++;
+        }
+    }
+
+    private static final class Misses {
+        private int inARow;
+        private int skipped;
+    }
+}
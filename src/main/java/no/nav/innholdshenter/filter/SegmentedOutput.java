@@ -0,0 +1,155 @@
+package no.nav.innholdshenter.filter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * En dekorert side som en rekke ferdig kodede segmenter: applikasjonens markup, kodet én gang inn i blokker fra
+ * {@link ChunkPool#BYTES}, og fragmentenes bytes, som deles mellom alle forespørsler og aldri kopieres.
+ * Blokkene leveres tilbake med {@link #release()}.
+ */
+class SegmentedOutput {
+
+    private final String encoding;
+    private final ByteArrayServletOutputStream encoded;
+    private final List<Segment> segments = new ArrayList<>();
+    private int size;
+
+    SegmentedOutput(String encoding) {
+        this.encoding = encoding;
+        this.encoded = new ByteArrayServletOutputStream(encoding, ChunkPool.BYTES);
+    }
+
+    String getEncoding() {
+        return encoding;
+    }
+
+    void appendText(String text) throws IOException {
+        appendText(text, 0, text.length());
+    }
+
+    void appendText(String text, int start, int end) throws IOException {
+        if (start == end) {
+            return;
+        }
+        int from = encoded.size();
+        CharEncoder charEncoder = new CharEncoder(encoding, encoded);
+        charEncoder.write(text, start, end);
+        charEncoder.finish();
+        appendEncoded(from);
+    }
+
+    private void appendEncoded(int from) {
+        int to = encoded.size();
+        if (from == to) {
+            return;
+        }
+        Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (last != null && last.shared == null && last.to == from) {
+            last.to = to;
+        } else {
+            segments.add(new Segment(null, from, to));
+        }
+        size += to - from;
+    }
+
+    /**
+     * @param shared bytes som ikke endres, og som derfor skrives ut uten å kopieres
+     */
+    void appendBytes(byte[] shared) {
+        appendShared(new SharedSegment(shared));
+    }
+
+    void appendShared(SharedSegment shared) {
+        int length = shared.getBytes().length;
+        if (length > 0) {
+            segments.add(new Segment(shared, 0, length));
+            size += length;
+        }
+    }
+
+    /**
+     * Lager en gzip-utgave av siden. Delte segmenter brukes i den komprimerte utgaven de har fra før, så det er
+     * bare applikasjonens markup som komprimeres per forespørsel. CRC32 regnes over alle de ukomprimerte bytene.
+     * Den returnerte siden må også leveres tilbake med {@link #release()}.
+     */
+    SegmentedOutput gzip() throws IOException {
+        SegmentedOutput gzip = new SegmentedOutput(encoding);
+        gzip.encoded.write(GzipSegments.HEADER);
+        gzip.appendEncoded(0);
+
+        CRC32 crc = new CRC32();
+        Deflater deflater = GzipSegments.createDeflater();
+        try {
+            DeflaterOutputStream deflaterStream = GzipSegments.createDeflaterStream(gzip.encoded, deflater);
+            OutputStream checked = new CheckedOutputStream(deflaterStream, crc);
+            for (Segment segment : segments) {
+                if (segment.shared == null) {
+                    int from = gzip.encoded.size();
+                    deflater.reset();
+                    encoded.writeTo(checked, segment.from, segment.to);
+                    deflaterStream.flush();
+                    gzip.appendEncoded(from);
+                } else {
+                    crc.update(segment.shared.getBytes());
+                    gzip.appendShared(new SharedSegment(segment.shared.getDeflated()));
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+
+        int from = gzip.encoded.size();
+        GzipSegments.writeTrailer(gzip.encoded, crc.getValue(), size);
+        gzip.appendEncoded(from);
+        return gzip;
+    }
+
+    /**
+     * @return summen av lengden til alle segmentene, altså Content-Length
+     */
+    int size() {
+        return size;
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        for (Segment segment : segments) {
+            if (segment.shared == null) {
+                encoded.writeTo(out, segment.from, segment.to);
+            } else {
+                out.write(segment.shared.getBytes(), segment.from, segment.to - segment.from);
+            }
+        }
+    }
+
+    byte[] toByteArray() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(size);
+        writeTo(bytes);
+        return bytes.toByteArray();
+    }
+
+    void release() {
+        encoded.release();
+        segments.clear();
+        size = 0;
+    }
+
+    private static final class Segment {
+        private final SharedSegment shared;
+        private final int from;
+        private int to;
+
+        private Segment(SharedSegment shared, int from, int to) {
+            this.shared = shared;
+            this.from = from;
+            this.to = to;
+        }
+    }
+}
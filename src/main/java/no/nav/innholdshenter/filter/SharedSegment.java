@@ -0,0 +1,28 @@
+package no.nav.innholdshenter.filter;
+
+/**
+ * Bytes som deles mellom forespørsler, med en komprimert utgave fra {@link GzipSegments} som lages første gang
+ * den trengs og deretter deles på samme måte.
+ */
+final class SharedSegment {
+
+    private final byte[] bytes;
+    private volatile byte[] deflated;
+
+    SharedSegment(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    byte[] getBytes() {
+        return bytes;
+    }
+
+    byte[] getDeflated() {
+        byte[] result = deflated;
+        if (result == null) {
+            result = GzipSegments.deflate(bytes);
+            deflated = result;
+        }
+        return result;
+    }
+}
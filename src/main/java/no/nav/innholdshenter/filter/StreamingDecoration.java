@@ -0,0 +1,53 @@
+package no.nav.innholdshenter.filter;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Avgjørelsen som tas når head i applikasjonens respons er lest ved strømmende dekorering.
+ */
+class StreamingDecoration {
+
+    enum Mode {
+        /** Erstatt placeholderne etter hvert som applikasjonen skriver */
+        DECORATE,
+        /** Skriv responsen videre uendret */
+        PASS_THROUGH,
+        /** Buffre hele responsen og dekorer den som før */
+        BUFFER
+    }
+
+    private static final StreamingDecoration PASS_THROUGH = new StreamingDecoration(Mode.PASS_THROUGH, Collections.<String, String>emptyMap());
+    private static final StreamingDecoration BUFFER = new StreamingDecoration(Mode.BUFFER, Collections.<String, String>emptyMap());
+
+    private final Mode mode;
+    private final Map<String, String> replacements;
+
+    private StreamingDecoration(Mode mode, Map<String, String> replacements) {
+        this.mode = mode;
+        this.replacements = replacements;
+    }
+
+    /**
+     * @param replacements markup per placeholder-navn uten klammeparenteser, f.eks. "fragment.header"
+     */
+    static StreamingDecoration decorate(Map<String, String> replacements) {
+        return new StreamingDecoration(Mode.DECORATE, replacements);
+    }
+
+    static StreamingDecoration passThrough() {
+        return PASS_THROUGH;
+    }
+
+    static StreamingDecoration buffer() {
+        return BUFFER;
+    }
+
+    Mode getMode() {
+        return mode;
+    }
+
+    Map<String, String> getReplacements() {
+        return replacements;
+    }
+}
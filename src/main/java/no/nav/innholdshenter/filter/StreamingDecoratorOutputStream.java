@@ -0,0 +1,278 @@
+package no.nav.innholdshenter.filter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+import static no.nav.innholdshenter.filter.DecoratorFilterUtils.PLACEHOLDER_PREFIX;
+
+/**
+ * Dekorerer responsen mens applikasjonen skriver den. Alt som skrives buffres til slutten av head
+ * ({@code </head>} eller {@code <body>}) er nådd. Da avgjøres det hvordan resten skal behandles, og ved
+ * dekorering skrives head og resten av siden videre med placeholderne erstattet, uten å buffre hele siden.
+ */
+class StreamingDecoratorOutputStream extends ServletOutputStream {
+
+    private static final Logger logger = LoggerFactory.getLogger(StreamingDecoratorOutputStream.class);
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final byte[][] END_OF_HEAD_MARKERS = {"</head".getBytes(ASCII), "<body".getBytes(ASCII)};
+    private static final int MAX_PLACEHOLDER_LENGTH = 128;
+
+    private enum State {HEAD, DECORATING, PASS_THROUGH, BUFFERING}
+
+    private final HttpServletResponse response;
+    private final String encoding;
+    private final Function<String, StreamingDecoration> resolver;
+    private PassThrough passThrough;
+    private final Buffer buffer = new Buffer();
+    private final byte[] singleByte = new byte[1];
+    private State state = State.HEAD;
+    private int scannedForEndOfHead;
+    private OutputStream out;
+    private Map<String, byte[]> replacements;
+    private final byte[] placeholder = new byte[MAX_PLACEHOLDER_LENGTH];
+    private int placeholderLength;
+
+    StreamingDecoratorOutputStream(HttpServletResponse response, String encoding, PassThrough passThrough,
+                                   Function<String, StreamingDecoration> resolver) {
+        this.response = response;
+        this.encoding = encoding;
+        this.passThrough = passThrough;
+        this.resolver = resolver;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        singleByte[0] = (byte) b;
+        write(singleByte, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        switch (state) {
+            case HEAD:
+                if (passThrough != null && passThroughOnFirstWrite()) {
+                    out.write(b, off, len);
+                    break;
+                }
+                buffer.write(b, off, len);
+                resolveIfEndOfHeadIsReached();
+                break;
+            case DECORATING:
+                writeReplacingPlaceholders(b, off, len);
+                break;
+            case PASS_THROUGH:
+                out.write(b, off, len);
+                break;
+            default:
+                buffer.write(b, off, len);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (out != null) {
+            out.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    /**
+     * Avslutter responsen når applikasjonen er ferdig.
+     *
+     * @return false hvis responsen ikke er skrevet, og må håndteres fra {@link #toByteArray()}
+     */
+    boolean finish() throws IOException {
+        if (state == State.HEAD && buffer.size() > 0) {
+            resolve(buffer.size());
+        }
+        if (state == State.DECORATING && placeholderLength > 0) {
+            writePlaceholderAsIs();
+        }
+        flush();
+        return state == State.DECORATING || state == State.PASS_THROUGH;
+    }
+
+    /**
+     * @return true så lenge det som skrives buffres til slutten av head er nådd
+     */
+    boolean isInHead() {
+        return state == State.HEAD;
+    }
+
+    byte[] toByteArray() {
+        return buffer.toByteArray();
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        buffer.writeTo(out);
+    }
+
+    @Override
+    public String toString() {
+        try {
+            return buffer.toString(encoding);
+        } catch (UnsupportedEncodingException e) {
+            logger.error("Unable to convert stream to string. Unsupported encoding ({}) used in request: {}", encoding, e.getMessage());
+        }
+        return "";
+    }
+
+    private boolean passThroughOnFirstWrite() throws IOException {
+        out = passThrough.target();
+        passThrough = null;
+        if (out != null) {
+            state = State.PASS_THROUGH;
+        }
+        return out != null;
+    }
+
+    private void resolveIfEndOfHeadIsReached() throws IOException {
+        int endOfHead = endOfHeadIndex(buffer.bytes(), scannedForEndOfHead, buffer.size());
+        if (endOfHead >= 0) {
+            resolve(endOfHead);
+        } else {
+            scannedForEndOfHead = Math.max(0, buffer.size() - END_OF_HEAD_MARKERS[0].length);
+        }
+    }
+
+    private void resolve(int endOfHead) throws IOException {
+        byte[] buffered = buffer.toByteArray();
+        StreamingDecoration decoration = resolver.apply(new String(buffered, 0, endOfHead, encoding));
+        switch (decoration.getMode()) {
+            case DECORATE:
+                state = State.DECORATING;
+                replacements = encodeReplacements(decoration.getReplacements());
+                out = response.getOutputStream();
+                buffer.reset();
+                writeReplacingPlaceholders(buffered, 0, endOfHead);
+                out.flush();
+                writeReplacingPlaceholders(buffered, endOfHead, buffered.length - endOfHead);
+                break;
+            case PASS_THROUGH:
+                state = State.PASS_THROUGH;
+                out = response.getOutputStream();
+                buffer.reset();
+                out.write(buffered);
+                break;
+            default:
+                state = State.BUFFERING;
+        }
+    }
+
+    private Map<String, byte[]> encodeReplacements(Map<String, String> markup) throws UnsupportedEncodingException {
+        Map<String, byte[]> encoded = new HashMap<>();
+        for (Map.Entry<String, String> entry : markup.entrySet()) {
+            encoded.put(entry.getKey(), entry.getValue().getBytes(encoding));
+        }
+        return encoded;
+    }
+
+    private void writeReplacingPlaceholders(byte[] b, int off, int len) throws IOException {
+        int end = off + len;
+        int literalStart = off;
+        for (int i = off; i < end; i++) {
+            byte c = b[i];
+            if (placeholderLength == 0) {
+                if (c == '{') {
+                    out.write(b, literalStart, i - literalStart);
+                    placeholder[placeholderLength++] = c;
+                    literalStart = i + 1;
+                }
+            } else if (c == '{') {
+                if (placeholderLength == 1) {
+                    placeholder[placeholderLength++] = c;
+                } else if (placeholderLength == 2) {
+                    out.write('{');
+                } else {
+                    writePlaceholderAsIs();
+                    placeholder[placeholderLength++] = c;
+                }
+                literalStart = i + 1;
+            } else if (placeholderLength == 1) {
+                writePlaceholderAsIs();
+                literalStart = i;
+            } else {
+                placeholder[placeholderLength++] = c;
+                literalStart = i + 1;
+                if (c == '}' && placeholder[placeholderLength - 2] == '}') {
+                    writeReplacement();
+                } else if (placeholderLength == MAX_PLACEHOLDER_LENGTH || c == '<' || c == '\n') {
+                    writePlaceholderAsIs();
+                }
+            }
+        }
+        if (placeholderLength == 0) {
+            out.write(b, literalStart, end - literalStart);
+        }
+    }
+
+    private void writeReplacement() throws IOException {
+        String name = new String(placeholder, 2, placeholderLength - 4, ASCII);
+        byte[] replacement = replacements.get(name);
+        if (replacement != null) {
+            out.write(replacement);
+            placeholderLength = 0;
+        } else {
+            if (name.startsWith(PLACEHOLDER_PREFIX)) {
+                logger.error("Fant unresolved placeholder {{" + name + "}} i applikasjonens markup.");
+            }
+            writePlaceholderAsIs();
+        }
+    }
+
+    private void writePlaceholderAsIs() throws IOException {
+        out.write(placeholder, 0, placeholderLength);
+        placeholderLength = 0;
+    }
+
+    private static int endOfHeadIndex(byte[] bytes, int from, int length) {
+        for (int i = from; i < length; i++) {
+            if (bytes[i] != '<') {
+                continue;
+            }
+            for (byte[] marker : END_OF_HEAD_MARKERS) {
+                if (startsWithIgnoreCase(bytes, i, length, marker)) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static boolean startsWithIgnoreCase(byte[] bytes, int offset, int length, byte[] marker) {
+        if (offset + marker.length > length) {
+            return false;
+        }
+        for (int i = 0; i < marker.length; i++) {
+            byte b = bytes[offset + i];
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != marker[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class Buffer extends ByteArrayOutputStream {
+        byte[] bytes() {
+            return buf;
+        }
+    }
+}
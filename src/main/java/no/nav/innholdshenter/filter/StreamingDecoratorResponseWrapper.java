@@ -0,0 +1,176 @@
+package no.nav.innholdshenter.filter;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Wraps the response from the servlet and decorates it while it is written, see {@link StreamingDecoratorOutputStream}.
+ * Content-Length set by the application is ignored, since decoration changes the length.
+ */
+class StreamingDecoratorResponseWrapper extends DecoratorResponseWrapper {
+
+    private static final String CONTENT_LENGTH = "Content-Length";
+
+    private final Function<String, StreamingDecoration> resolver;
+    private StreamingDecoratorOutputStream stream;
+    private PrintWriter writer;
+
+    public StreamingDecoratorResponseWrapper(HttpServletResponse response, Predicate<HttpServletResponse> passThroughCondition,
+                                             Function<String, StreamingDecoration> resolver) {
+        super(response, passThroughCondition);
+        this.resolver = resolver;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() {
+        if (writer != null) {
+            throw new IllegalStateException("getWriter() has already been called!");
+        }
+
+        if (stream == null) {
+            stream = createStream();
+        }
+
+        return stream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if (writer != null) {
+            return writer;
+        }
+
+        if (stream != null) {
+            throw new IllegalStateException("getOutputStream() has already been called!");
+        }
+
+        stream = createStream();
+        writer = new PrintWriter(new HeadFlushingWriter(new OutputStreamWriter(stream, getCharacterEncoding()), stream));
+        return writer;
+    }
+
+    private StreamingDecoratorOutputStream createStream() {
+        return new StreamingDecoratorOutputStream((HttpServletResponse) getResponse(), getCharacterEncoding(), this::passThroughTarget, resolver);
+    }
+
+    @Override
+    public void setContentLength(int len) {
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        if (!CONTENT_LENGTH.equalsIgnoreCase(name)) {
+            super.setHeader(name, value);
+        }
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        if (!CONTENT_LENGTH.equalsIgnoreCase(name)) {
+            super.addHeader(name, value);
+        }
+    }
+
+    @Override
+    public void setIntHeader(String name, int value) {
+        if (!CONTENT_LENGTH.equalsIgnoreCase(name)) {
+            super.setIntHeader(name, value);
+        }
+    }
+
+    @Override
+    public void addIntHeader(String name, int value) {
+        if (!CONTENT_LENGTH.equalsIgnoreCase(name)) {
+            super.addIntHeader(name, value);
+        }
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+
+        if (stream != null) {
+            stream.flush();
+        }
+    }
+
+    /**
+     * @return false hvis responsen ikke ble skrevet mens den strømmet, og må håndteres fra getOutputAsString()
+     */
+    public boolean finish() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+        return stream == null || stream.finish();
+    }
+
+    @Override
+    public String getOutputAsString() {
+        if (stream != null) {
+            return stream.toString();
+        }
+        return "";
+    }
+
+    @Override
+    public void writeOutputTo(OutputStream out) throws IOException {
+        if (stream != null) {
+            stream.writeTo(out);
+        }
+    }
+
+    @Override
+    public byte[] getOutputAsByteArray() throws IOException {
+        if (stream != null) {
+            return stream.toByteArray();
+        }
+        return "".getBytes();
+    }
+
+    /**
+     * OutputStreamWriter holder på opptil 8 KiB før bytene når strømmen. Så lenge strømmen leter etter slutten av
+     * head, tømmes den etter hver skriving, slik at head sendes så snart den er skrevet også med getWriter().
+     */
+    private static final class HeadFlushingWriter extends FilterWriter {
+        private final StreamingDecoratorOutputStream stream;
+
+        private HeadFlushingWriter(Writer out, StreamingDecoratorOutputStream stream) {
+            super(out);
+            this.stream = stream;
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            super.write(c);
+            flushWhileInHead();
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            super.write(cbuf, off, len);
+            flushWhileInHead();
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            super.write(str, off, len);
+            flushWhileInHead();
+        }
+
+        private void flushWhileInHead() throws IOException {
+            if (stream.isInHead()) {
+                out.flush();
+            }
+        }
+    }
+}
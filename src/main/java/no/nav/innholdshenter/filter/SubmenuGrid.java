@@ -0,0 +1,232 @@
+package no.nav.innholdshenter.filter;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Fjerner submenykolonnen fra griden i #maincontent og gjør applikasjonskolonnen full bredde. Elementene finnes ved
+ * å lete gjennom taggene i markupen, uten å parse og serialisere siden, så resten av markupen står som applikasjonen
+ * skrev den.
+ */
+final class SubmenuGrid {
+
+    private static final String MAINCONTENT = "maincontent";
+    private static final String ROW = "row";
+    private static final String FULL_WIDTH = "col-md-12";
+    private static final String COLUMN_PREFIX = "col-";
+
+    private static final Pattern TAG = Pattern.compile("<!--.*?-->|<(/?)([a-zA-Z][a-zA-Z0-9-]*)((?:[\\s/][^>]*)?)>", Pattern.DOTALL);
+    private static final Pattern ID = attributePattern("id");
+    private static final Pattern CLASS = attributePattern("class");
+    private static final Set<String> VOID_ELEMENTS = new HashSet<>(Arrays.asList(
+            "area", "base", "br", "col", "embed", "hr", "img", "input", "link", "meta", "param", "source", "track", "wbr"));
+    private static final Set<String> RAW_TEXT_ELEMENTS = new HashSet<>(Arrays.asList("script", "style", "textarea", "title"));
+
+    private SubmenuGrid() {
+    }
+
+    /**
+     * @return markupen uten første kolonne i første .row i #maincontent, og med klassen col-md-12 i stedet for
+     * kolonneklassene til den andre, eller null hvis griden ikke finnes
+     */
+    static String removeSubmenu(String markup) {
+        Tags tags = new Tags(markup);
+        if (!findMaincontent(tags)) {
+            return null;
+        }
+        if (!hasClass(tags, ROW) && (!tags.opensElement() || !findStartTag(tags, true, t -> hasClass(t, ROW)))) {
+            return null;
+        }
+        if (!tags.opensElement() || !findStartTag(tags, false, t -> true)) {
+            return null;
+        }
+        int submenuStart = tags.start;
+        if (!skipElement(tags)) {
+            return null;
+        }
+        int submenuEnd = tags.end;
+        if (!findStartTag(tags, false, t -> true)) {
+            return null;
+        }
+
+        StringBuilder result = new StringBuilder(markup.length());
+        result.append(markup, 0, submenuStart);
+        Matcher classAttribute = CLASS.matcher(tags.attributes);
+        if (classAttribute.find()) {
+            int valueGroup = classAttribute.group(1) != null ? 1 : classAttribute.group(2) != null ? 2 : 3;
+            int valueStart = tags.attributesStart + classAttribute.start(valueGroup);
+            int valueEnd = tags.attributesStart + classAttribute.end(valueGroup);
+            result.append(markup, submenuEnd, valueStart)
+                    .append(fullWidthClasses(classAttribute.group(valueGroup)))
+                    .append(markup, valueEnd, markup.length());
+        } else {
+            result.append(markup, submenuEnd, tags.attributesStart)
+                    .append(" class=\"").append(FULL_WIDTH).append('"')
+                    .append(markup, tags.attributesStart, markup.length());
+        }
+        return result.toString();
+    }
+
+    private static boolean findMaincontent(Tags tags) {
+        while (tags.next()) {
+            if (!tags.closing && MAINCONTENT.equals(tags.attribute(ID))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Går til neste starttag som oppfyller condition, blant barna til elementet tags står i, eller blant alle
+     * etterkommerne hvis descendants er satt.
+     *
+     * @return false hvis elementet slutter før en slik tag, eller en sluttag ikke passer med elementene som er åpne
+     */
+    private static boolean findStartTag(Tags tags, boolean descendants, Predicate<Tags> condition) {
+        Deque<String> open = new ArrayDeque<>();
+        while (tags.next()) {
+            if (tags.closing) {
+                if (!closeElement(open, tags.name)) {
+                    return false;
+                }
+            } else {
+                if ((descendants || open.isEmpty()) && condition.test(tags)) {
+                    return true;
+                }
+                if (tags.opensElement()) {
+                    open.push(tags.name);
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Går fra starttaggen til et element til sluttaggen, eller blir stående hvis elementet ikke har noen.
+     *
+     * @return false hvis elementet ikke slutter, eller en sluttag ikke passer med elementene som er åpne
+     */
+    private static boolean skipElement(Tags tags) {
+        if (!tags.opensElement()) {
+            return true;
+        }
+        Deque<String> open = new ArrayDeque<>();
+        open.push(tags.name);
+        while (tags.next()) {
+            if (tags.closing) {
+                if (!closeElement(open, tags.name)) {
+                    return false;
+                }
+                if (open.isEmpty()) {
+                    return true;
+                }
+            } else if (tags.opensElement()) {
+                open.push(tags.name);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Lukker det innerste åpne elementet med navnet name, og elementene inni det som står uten sluttag, som p og li.
+     *
+     * @return false hvis ingen av de åpne elementene heter name
+     */
+    private static boolean closeElement(Deque<String> open, String name) {
+        if (!open.contains(name)) {
+            return false;
+        }
+        String closed;
+        do {
+            closed = open.pop();
+        } while (!closed.equals(name));
+        return true;
+    }
+
+    private static boolean hasClass(Tags tags, String className) {
+        String classes = tags.attribute(CLASS);
+        return classes != null && Arrays.asList(classes.trim().split("\\s+")).contains(className);
+    }
+
+    private static String fullWidthClasses(String classes) {
+        StringBuilder result = new StringBuilder();
+        for (String className : classes.trim().split("\\s+")) {
+            if (!className.isEmpty() && !className.startsWith(COLUMN_PREFIX)) {
+                result.append(className).append(' ');
+            }
+        }
+        return result.append(FULL_WIDTH).toString();
+    }
+
+    private static Pattern attributePattern(String name) {
+        return Pattern.compile("\\s" + name + "\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)'|([^\\s>\"']+))", Pattern.CASE_INSENSITIVE);
+    }
+
+    /**
+     * Start- og sluttaggene i markupen, i rekkefølge. Kommentarer hoppes over, og innholdet i elementer som script
+     * leses ikke som tagger.
+     */
+    private static final class Tags {
+        private final String markup;
+        private final Matcher matcher;
+        private int start;
+        private int end;
+        private boolean closing;
+        private String name;
+        private String attributes;
+        private int attributesStart;
+
+        private Tags(String markup) {
+            this.markup = markup;
+            this.matcher = TAG.matcher(markup);
+        }
+
+        private boolean next() {
+            while (matcher.find()) {
+                if (matcher.group(2) == null) {
+                    continue;
+                }
+                start = matcher.start();
+                end = matcher.end();
+                closing = !matcher.group(1).isEmpty();
+                name = matcher.group(2).toLowerCase();
+                attributes = matcher.group(3);
+                attributesStart = matcher.start(3);
+                if (!closing && RAW_TEXT_ELEMENTS.contains(name)) {
+                    int rawTextEnd = indexOfEndTag(name, end);
+                    matcher.region(rawTextEnd < 0 ? markup.length() : rawTextEnd, markup.length());
+                }
+                return true;
+            }
+            return false;
+        }
+
+        private int indexOfEndTag(String elementName, int from) {
+            String endTag = "</" + elementName;
+            for (int i = markup.indexOf("</", from); i >= 0; i = markup.indexOf("</", i + 2)) {
+                if (markup.regionMatches(true, i, endTag, 0, endTag.length())) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private boolean opensElement() {
+            return !closing && !VOID_ELEMENTS.contains(name) && !attributes.endsWith("/");
+        }
+
+        private String attribute(Pattern attribute) {
+            Matcher matcher = attribute.matcher(attributes);
+            if (!matcher.find()) {
+                return null;
+            }
+            return matcher.group(1) != null ? matcher.group(1) : matcher.group(2) != null ? matcher.group(2) : matcher.group(3);
+        }
+    }
+}
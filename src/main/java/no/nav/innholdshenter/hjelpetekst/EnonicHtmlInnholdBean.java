@@ -1,18 +1,27 @@
 package no.nav.innholdshenter.hjelpetekst;
 
 import no.nav.innholdshenter.common.ContentRetriever;
-import org.jdom2.Document;
-import org.jdom2.Element;
-import org.jdom2.output.XMLOutputter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-
-import static org.jdom2.output.Format.getRawFormat;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Henter hjelpetekster (i html) fra EnonicContentRetriever basert på nøkkel.
@@ -20,19 +29,24 @@ import static org.jdom2.output.Format.getRawFormat;
 public class EnonicHtmlInnholdBean {
 
     private static final Logger logger = LoggerFactory.getLogger(EnonicHtmlInnholdBean.class);
-    private static final String HTMLINNHOLD_ELEMENT = "htmlinnhold";
-    private static final String TITLE_ELEMENT = "title";
-    private static final String HTML_ELEMENT = "html";
-    private static final String LOCALE_UTF_8 = "UTF-8";
-    private static final String INNHOLDSLISTE_ELEMENT = "innholdsliste";
-    private static final String KEY_ATTRIBUTE = "key";
     private static final String KEY_URL_QUERY_PATH = "?key=";
     private static final String FEILMELDING_FEIL_VED_HENTING_AV_HTMLINNHOLD_MED_KEY = "Feil ved henting av htmlinnhold med key '{}': {}";
+    private static final int DEFAULT_PREFETCH_PARALLELLITET = 4;
+    private static final long DEFAULT_INDEKS_REFRESH_MILLIS = 5 * 60 * 1000;
 
     private String helptextPath;
 
     private EnonicDocumentRetriever enonicDocumentRetriever;
+    private final HtmlInnholdParser htmlInnholdParser = new HtmlInnholdParser();
     private List<HtmlInnholdListener> htmlInnholdListeners = new ArrayList<>();
+    private final Map<String, ProsessertHjelpetekst> prosesserteHjelpetekster = new ConcurrentHashMap<>();
+    private boolean brukIndeks;
+    private int prefetchParallellitet = DEFAULT_PREFETCH_PARALLELLITET;
+    private long indeksRefreshMillis = DEFAULT_INDEKS_REFRESH_MILLIS;
+    private volatile Indeks indeks;
+    private ExecutorService prefetchExecutor;
+    private ScheduledExecutorService refreshExecutor;
+    private final AtomicBoolean refreshPlanlagt = new AtomicBoolean();
 
     public EnonicHtmlInnholdBean(ContentRetriever retriever, String helptextPath) {
         setRetriever(retriever);
@@ -42,60 +56,205 @@ public class EnonicHtmlInnholdBean {
     public EnonicHtmlInnholdBean() {
     }
 
+    /**
+     * Henter hjelpeteksten for key. Ferdig prosessert HtmlInnhold (også etter HtmlInnholdListener-ene) gjenbrukes
+     * så lenge innholdet fra ContentRetriever er uendret, så samme instans returneres til innholdet publiseres på nytt.
+     * <p>
+     * Med indeks slått på ({@link #setBrukIndeks(boolean)}) hentes hjelpeteksten fra indeksen, og bare nøkler som
+     * ikke finnes i innholdslisten hentes enkeltvis.
+     */
     public HtmlInnhold getHjelpetekst(Object key) {
+        if (brukIndeks) {
+            HtmlInnhold htmlInnhold = getHjelpetekstIndeks().get(String.valueOf(key));
+            if (htmlInnhold != null) {
+                return htmlInnhold;
+            }
+        }
+        return hentHjelpetekst(key);
+    }
+
+    private HtmlInnhold hentHjelpetekst(Object key) {
         HtmlInnhold htmlInnhold = null;
         try {
-            Document document = enonicDocumentRetriever.loadDocument(helptextPath + KEY_URL_QUERY_PATH + key);
-            Element rootElement = document.getRootElement();
-            if (HTMLINNHOLD_ELEMENT.equals(rootElement.getName())) {
-                htmlInnhold = new HtmlInnhold();
-                htmlInnhold.setTitle(rootElement.getChildText(TITLE_ELEMENT));
-                htmlInnhold.setHtml(getHtml(rootElement.getChild(HTML_ELEMENT)));
-                htmlInnhold = processHtmlInnhold(htmlInnhold);
+            String url = helptextPath + KEY_URL_QUERY_PATH + key;
+            String content = enonicDocumentRetriever.loadContent(url);
+            ProsessertHjelpetekst prosessert = prosesserteHjelpetekster.get(url);
+            if (prosessert != null && prosessert.erLagetFra(content)) {
+                return prosessert.htmlInnhold;
             }
+            htmlInnhold = createHjelpetekst(content, url);
+            prosesserteHjelpetekster.put(url, new ProsessertHjelpetekst(content, htmlInnhold));
         } catch (IllegalStateException e) {
             logger.error(FEILMELDING_FEIL_VED_HENTING_AV_HTMLINNHOLD_MED_KEY, key, e.getMessage());
         }
         return htmlInnhold;
     }
 
-    private String getHtml(Element element) {
-        String htmlString = null;
-        try {
-            XMLOutputter xmlOutputter = new XMLOutputter();
-            xmlOutputter.setFormat(getRawFormat().setEncoding(LOCALE_UTF_8));
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    private HtmlInnhold createHjelpetekst(String content, String url) {
+        HtmlInnhold htmlInnhold = htmlInnholdParser.parseHtmlInnhold(content, url);
+        return htmlInnhold == null ? null : processHtmlInnhold(htmlInnhold);
+    }
 
-            xmlOutputter.output(element.getChildren(), outputStream);
-            htmlString = new String(outputStream.toByteArray(), LOCALE_UTF_8);
-        } catch (IOException e) {
-            logger.error("Kunne ikke skrive html for element");
+    public List<HtmlInnhold> getHjelpetekster() {
+        try {
+            return parseHjelpetekster(enonicDocumentRetriever.loadContent(helptextPath));
+        } catch (IllegalStateException e) {
+            logger.error("Feil ved henting av hjelpetekster fra url {}", helptextPath);
         }
-        return htmlString;
+        return new ArrayList<>();
     }
 
-    public List<HtmlInnhold> getHjelpetekster() {
+    private List<HtmlInnhold> parseHjelpetekster(String innholdsliste) {
         List<HtmlInnhold> hjelpetekster = new ArrayList<>();
+        htmlInnholdParser.parseInnholdsliste(innholdsliste, helptextPath, htmlInnhold -> hjelpetekster.add(processHtmlInnhold(htmlInnhold)));
+        return hjelpetekster;
+    }
+
+    /**
+     * Alle hjelpetekstene i innholdslisten, per nøkkel. Indeksen bygges ved første kall. Deretter bygges den på nytt
+     * i bakgrunnen når innholdslisten fra ContentRetriever er endret, og hvert indeksRefreshMillis for å få med
+     * hjelpetekster som er publisert på nytt, mens forrige indeks brukes. Kan ikke innholdslisten hentes ved første
+     * kall, brukes en tom indeks slik at hjelpetekstene hentes enkeltvis.
+     */
+    public Map<String, HtmlInnhold> getHjelpetekstIndeks() {
+        Indeks gjeldende = indeks;
+        if (gjeldende == null) {
+            gjeldende = byggForsteIndeks();
+        } else {
+            String innholdsliste = hentInnholdsliste();
+            if (innholdsliste != null && !gjeldende.erLagetFra(innholdsliste)) {
+                planleggRefresh();
+            }
+        }
+        return gjeldende == null ? Collections.<String, HtmlInnhold>emptyMap() : gjeldende.hjelpetekster;
+    }
+
+    /**
+     * Bygger indeksen på nytt, også når innholdslisten er uendret, slik at hjelpetekster som er publisert på nytt
+     * kommer med.
+     */
+    public synchronized void refreshHjelpetekstIndeks() {
+        String innholdsliste = hentInnholdsliste();
+        if (innholdsliste != null) {
+            byggIndeks(innholdsliste);
+        }
+    }
+
+    private synchronized Indeks byggForsteIndeks() {
+        if (indeks == null) {
+            refreshHjelpetekstIndeks();
+            if (indeksRefreshMillis > 0 && refreshExecutor == null) {
+                getRefreshExecutor().scheduleWithFixedDelay(this::refreshIBakgrunnen, indeksRefreshMillis, indeksRefreshMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        return indeks;
+    }
+
+    /**
+     * Bygger indeksen på nytt i bakgrunnen, med mindre det allerede er planlagt.
+     */
+    private void planleggRefresh() {
+        if (refreshPlanlagt.compareAndSet(false, true)) {
+            try {
+                getRefreshExecutor().execute(this::refreshIBakgrunnen);
+            } catch (RejectedExecutionException e) {
+                refreshPlanlagt.set(false);
+            }
+        }
+    }
+
+    private void refreshIBakgrunnen() {
+        refreshPlanlagt.set(false);
         try {
-            Document document = enonicDocumentRetriever.loadDocument(helptextPath);
-            Element rootElement = document.getRootElement();
-            if (INNHOLDSLISTE_ELEMENT.equals(rootElement.getName())) {
-                List children = rootElement.getChildren(HTMLINNHOLD_ELEMENT);
-                for (Object child : children) {
-                    Element element = (Element) child;
-                    if (HTMLINNHOLD_ELEMENT.equals(element.getName())) {
-                        HtmlInnhold htmlInnhold = new HtmlInnhold();
-                        htmlInnhold.setTitle(element.getAttributeValue(TITLE_ELEMENT));
-                        htmlInnhold.setKey(element.getAttributeValue(KEY_ATTRIBUTE));
-                        hjelpetekster.add(processHtmlInnhold(htmlInnhold));
+            refreshHjelpetekstIndeks();
+        } catch (RuntimeException e) {
+            logger.error("Feil ved oppdatering av indeksen over hjelpetekster fra url {}", helptextPath, e);
+        }
+    }
+
+    private String hentInnholdsliste() {
+        try {
+            return enonicDocumentRetriever.loadContent(helptextPath);
+        } catch (RuntimeException e) {
+            logger.error("Feil ved henting av hjelpetekster fra url {}: {}", helptextPath, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Henter alle hjelpetekstene i innholdslisten parallelt, med høyst prefetchParallellitet samtidige kall.
+     * Hjelpetekster som feiler beholdes fra forrige indeks, og nøkler uten hjelpetekst utelates, slik at de hentes
+     * enkeltvis.
+     */
+    private void byggIndeks(String innholdsliste) {
+        Indeks forrige = indeks;
+        Map<String, HtmlInnhold> forrigeHjelpetekster = forrige == null ? Collections.<String, HtmlInnhold>emptyMap() : forrige.hjelpetekster;
+        Map<String, HtmlInnhold> nyeHjelpetekster = new LinkedHashMap<>();
+        List<HtmlInnhold> hjelpetekster;
+        try {
+            hjelpetekster = parseHjelpetekster(innholdsliste);
+        } catch (IllegalStateException e) {
+            logger.error("Feil ved henting av hjelpetekster fra url {}: {}", helptextPath, e.getMessage());
+            return;
+        }
+        if (!hjelpetekster.isEmpty()) {
+            List<Callable<HtmlInnhold>> oppgaver = new ArrayList<>();
+            for (HtmlInnhold hjelpetekst : hjelpetekster) {
+                oppgaver.add(() -> hentHjelpetekst(hjelpetekst.getKey()));
+            }
+            try {
+                List<Future<HtmlInnhold>> resultater = getPrefetchExecutor().invokeAll(oppgaver);
+                for (int i = 0; i < hjelpetekster.size(); i++) {
+                    String key = hjelpetekster.get(i).getKey();
+                    HtmlInnhold htmlInnhold;
+                    try {
+                        htmlInnhold = resultater.get(i).get();
+                    } catch (ExecutionException e) {
+                        logger.error(FEILMELDING_FEIL_VED_HENTING_AV_HTMLINNHOLD_MED_KEY, key, e.getCause().getMessage());
+                        htmlInnhold = forrigeHjelpetekster.get(key);
+                    }
+                    if (htmlInnhold != null) {
+                        nyeHjelpetekster.put(key, htmlInnhold);
                     }
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.warn("Avbrutt under henting av hjelpetekster fra url {}", helptextPath);
+                return;
             }
-        } catch (IllegalStateException e) {
-            logger.error("Feil ved henting av hjelpetekster fra url {}", helptextPath);
         }
+        indeks = new Indeks(innholdsliste, Collections.unmodifiableMap(nyeHjelpetekster));
+    }
 
-        return hjelpetekster;
+    private synchronized ScheduledExecutorService getRefreshExecutor() {
+        if (refreshExecutor == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "hjelpetekst-indeks-refresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+            refreshExecutor = executor;
+        }
+        return refreshExecutor;
+    }
+
+    /**
+     * Trådene lages når indeksen bygges, og avsluttes når de har vært ledige en stund.
+     */
+    private ExecutorService getPrefetchExecutor() {
+        if (prefetchExecutor == null) {
+            AtomicInteger threadNumber = new AtomicInteger();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(prefetchParallellitet, prefetchParallellitet, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), runnable -> {
+                        Thread thread = new Thread(runnable, "hjelpetekst-prefetch-" + threadNumber.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            prefetchExecutor = executor;
+        }
+        return prefetchExecutor;
     }
 
     private HtmlInnhold processHtmlInnhold(HtmlInnhold htmlInnhold) {
@@ -108,6 +267,42 @@ public class EnonicHtmlInnholdBean {
 
     public void setHelptextPath(String helptextPath) {
         this.helptextPath = helptextPath;
+        prosesserteHjelpetekster.clear();
+        indeks = null;
+    }
+
+    public void setBrukIndeks(boolean brukIndeks) {
+        this.brukIndeks = brukIndeks;
+    }
+
+    /**
+     * Hvor ofte indeksen bygges på nytt i bakgrunnen for å få med hjelpetekster som er publisert på nytt. 0 slår av
+     * den faste oppdateringen, slik at indeksen bare bygges på nytt når innholdslisten endres.
+     */
+    public void setIndeksRefreshMillis(long indeksRefreshMillis) {
+        this.indeksRefreshMillis = indeksRefreshMillis;
+    }
+
+    /**
+     * Stopper trådene som bygger indeksen, f.eks. når applikasjonen tas ned.
+     */
+    public synchronized void destroy() {
+        if (refreshExecutor != null) {
+            refreshExecutor.shutdownNow();
+            refreshExecutor = null;
+        }
+        if (prefetchExecutor != null) {
+            prefetchExecutor.shutdownNow();
+            prefetchExecutor = null;
+        }
+    }
+
+    public synchronized void setPrefetchParallellitet(int prefetchParallellitet) {
+        this.prefetchParallellitet = prefetchParallellitet;
+        if (prefetchExecutor != null) {
+            prefetchExecutor.shutdown();
+            prefetchExecutor = null;
+        }
     }
 
     private void setRetriever(ContentRetriever retriever) {
@@ -117,5 +312,52 @@ public class EnonicHtmlInnholdBean {
 
     public void setHtmlInnholdListeners(List<HtmlInnholdListener> htmlInnholdListeners) {
         this.htmlInnholdListeners = htmlInnholdListeners;
+        prosesserteHjelpetekster.clear();
+        indeks = null;
+    }
+
+    private static final class ProsessertHjelpetekst {
+        private volatile String content;
+        private final HtmlInnhold htmlInnhold;
+
+        private ProsessertHjelpetekst(String content, HtmlInnhold htmlInnhold) {
+            this.content = content;
+            this.htmlInnhold = htmlInnhold;
+        }
+
+        /**
+         * Er innholdet likt, men en annen instans, tas den vare på, slik at neste sammenligning er en referansesjekk.
+         */
+        private boolean erLagetFra(String content) {
+            if (this.content == content) {
+                return true;
+            }
+            if (this.content.equals(content)) {
+                this.content = content;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private static final class Indeks {
+        private volatile String innholdsliste;
+        private final Map<String, HtmlInnhold> hjelpetekster;
+
+        private Indeks(String innholdsliste, Map<String, HtmlInnhold> hjelpetekster) {
+            this.innholdsliste = innholdsliste;
+            this.hjelpetekster = hjelpetekster;
+        }
+
+        private boolean erLagetFra(String innholdsliste) {
+            if (this.innholdsliste == innholdsliste) {
+                return true;
+            }
+            if (this.innholdsliste.equals(innholdsliste)) {
+                this.innholdsliste = innholdsliste;
+                return true;
+            }
+            return false;
+        }
     }
 }
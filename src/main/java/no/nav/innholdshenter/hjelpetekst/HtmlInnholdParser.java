@@ -0,0 +1,177 @@
+package no.nav.innholdshenter.hjelpetekst;
+
+import org.jdom2.Content;
+import org.jdom2.Element;
+import org.jdom2.JDOMException;
+import org.jdom2.input.StAXStreamBuilder;
+import org.jdom2.output.XMLOutputter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.function.Consumer;
+
+import static org.jdom2.output.Format.getRawFormat;
+
+/**
+ * Leser htmlinnhold og innholdsliste fra Enonic med StAX. Bare html-elementet i en enkelt hjelpetekst bygges
+ * som JDOM-tre, resten leses rett fra strømmen.
+ */
+class HtmlInnholdParser {
+
+    private static final Logger logger = LoggerFactory.getLogger(HtmlInnholdParser.class);
+    private static final String HTMLINNHOLD_ELEMENT = "htmlinnhold";
+    private static final String INNHOLDSLISTE_ELEMENT = "innholdsliste";
+    private static final String TITLE_ELEMENT = "title";
+    private static final String HTML_ELEMENT = "html";
+    private static final String KEY_ATTRIBUTE = "key";
+    private static final String LOCALE_UTF_8 = "UTF-8";
+    private static final String FEILMELDING_COULD_NOT_PARSE_CONFIG_FROM_URL = "Could not parse config from %s";
+
+    private final XMLInputFactory xmlInputFactory;
+
+    HtmlInnholdParser() {
+        xmlInputFactory = XMLInputFactory.newInstance();
+        xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        xmlInputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    /**
+     * @return hjelpeteksten, eller null hvis rotelementet ikke er htmlinnhold
+     */
+    HtmlInnhold parseHtmlInnhold(String xml, String url) {
+        XMLStreamReader reader = createReader(xml, url);
+        try {
+            if (!HTMLINNHOLD_ELEMENT.equals(reader.getLocalName())) {
+                return null;
+            }
+            HtmlInnhold htmlInnhold = new HtmlInnhold();
+            boolean hasChildElement = nextChildElement(reader);
+            while (hasChildElement) {
+                if (TITLE_ELEMENT.equals(reader.getLocalName()) && htmlInnhold.getTitle() == null) {
+                    htmlInnhold.setTitle(reader.getElementText());
+                    hasChildElement = nextChildElement(reader);
+                } else if (HTML_ELEMENT.equals(reader.getLocalName()) && htmlInnhold.getHtml() == null) {
+                    htmlInnhold.setHtml(getHtml(reader));
+                    hasChildElement = currentOrNextChildElement(reader);
+                } else {
+                    skipElement(reader);
+                    hasChildElement = nextChildElement(reader);
+                }
+            }
+            return htmlInnhold;
+        } catch (XMLStreamException | JDOMException e) {
+            throw new RuntimeException(String.format(FEILMELDING_COULD_NOT_PARSE_CONFIG_FROM_URL, url), e);
+        } finally {
+            close(reader);
+        }
+    }
+
+    /**
+     * Leser htmlinnhold-elementene i en innholdsliste ett for ett og gir dem videre til consumer etter hvert.
+     */
+    void parseInnholdsliste(String xml, String url, Consumer<HtmlInnhold> consumer) {
+        XMLStreamReader reader = createReader(xml, url);
+        try {
+            if (!INNHOLDSLISTE_ELEMENT.equals(reader.getLocalName())) {
+                return;
+            }
+            while (nextChildElement(reader)) {
+                if (HTMLINNHOLD_ELEMENT.equals(reader.getLocalName())) {
+                    HtmlInnhold htmlInnhold = new HtmlInnhold();
+                    htmlInnhold.setTitle(reader.getAttributeValue(null, TITLE_ELEMENT));
+                    htmlInnhold.setKey(reader.getAttributeValue(null, KEY_ATTRIBUTE));
+                    consumer.accept(htmlInnhold);
+                }
+                skipElement(reader);
+            }
+        } catch (XMLStreamException e) {
+            throw new RuntimeException(String.format(FEILMELDING_COULD_NOT_PARSE_CONFIG_FROM_URL, url), e);
+        } finally {
+            close(reader);
+        }
+    }
+
+    private XMLStreamReader createReader(String xml, String url) {
+        try {
+            XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(new StringReader(xml));
+            reader.nextTag();
+            return reader;
+        } catch (XMLStreamException e) {
+            throw new RuntimeException(String.format(FEILMELDING_COULD_NOT_PARSE_CONFIG_FROM_URL, url), e);
+        }
+    }
+
+    /**
+     * Går til neste barneelement av gjeldende element.
+     *
+     * @return false når slutten av gjeldende element er nådd
+     */
+    private static boolean nextChildElement(XMLStreamReader reader) throws XMLStreamException {
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                return true;
+            }
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Som {@link #nextChildElement(XMLStreamReader)}, men for når readeren allerede står på hendelsen etter forrige
+     * barneelement, slik JDOM etterlater den etter å ha bygget et fragment.
+     */
+    private static boolean currentOrNextChildElement(XMLStreamReader reader) throws XMLStreamException {
+        int event = reader.getEventType();
+        if (event == XMLStreamConstants.START_ELEMENT) {
+            return true;
+        }
+        if (event == XMLStreamConstants.END_ELEMENT || event == XMLStreamConstants.END_DOCUMENT) {
+            return false;
+        }
+        return nextChildElement(reader);
+    }
+
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private static String getHtml(XMLStreamReader reader) throws JDOMException {
+        Content html = new StAXStreamBuilder().fragment(reader);
+        try {
+            XMLOutputter xmlOutputter = new XMLOutputter();
+            xmlOutputter.setFormat(getRawFormat().setEncoding(LOCALE_UTF_8));
+            StringWriter writer = new StringWriter();
+            xmlOutputter.output(((Element) html).getChildren(), writer);
+            return writer.toString();
+        } catch (IOException e) {
+            logger.error("Kunne ikke skrive html for element");
+            return null;
+        }
+    }
+
+    private static void close(XMLStreamReader reader) {
+        try {
+            reader.close();
+        } catch (XMLStreamException e) {
+            logger.debug("Kunne ikke lukke XMLStreamReader", e);
+        }
+    }
+}
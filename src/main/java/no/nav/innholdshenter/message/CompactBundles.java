@@ -0,0 +1,178 @@
+package no.nav.innholdshenter.message;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Kompakt representasjon av mange properties-bundles (locale/variant) som i stor grad har de samme nøklene.
+ * Nøklene lagres én gang i en sortert ordliste som deles av alle bundles, og hver bundle er bare en
+ * verdi-tabell indeksert på nøkkelens posisjon. Like verdier deles på tvers av bundles, og kan valgfritt
+ * lagres som UTF-8 bytes.
+ * <p>
+ * Heap-estimatene forutsetter en 64-bits JVM med compressed oops og {@code char[]}-baserte strenger (Java 8).
+ */
+public class CompactBundles {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int ARRAY_HEADER = 16;
+    private static final int REFERENCE = 4;
+    private static final int STRING_SHALLOW = 24;
+    private static final int HASHTABLE_SHALLOW = 48;
+    private static final int HASHTABLE_ENTRY = 32;
+
+    private final String[] keys;
+    private final Map<String, Object[]> bundles;
+    private final Map<String, Long> heapUsage;
+    private final long sharedKeysHeapUsage;
+    private final boolean utf8Values;
+
+    public CompactBundles(Map<String, Properties> bundles) {
+        this(bundles, false);
+    }
+
+    /**
+     * @param bundles    bundles per navn, f.eks. "no_NO" eller "en_GB/ingendata"
+     * @param utf8Values lagre verdiene som UTF-8 bytes i stedet for strenger. Sparer minne for tekster med
+     *                   mest ASCII, mot at verdien dekodes ved hvert oppslag.
+     */
+    public CompactBundles(Map<String, Properties> bundles, boolean utf8Values) {
+        this.utf8Values = utf8Values;
+        this.keys = collectSortedKeys(bundles.values());
+        this.sharedKeysHeapUsage = arraySize(keys.length, REFERENCE) + sumStringSizes(keys);
+
+        Map<String, Object> distinctValues = new HashMap<>();
+        Map<String, Object[]> compactBundles = new LinkedHashMap<>();
+        Map<String, Long> usage = new LinkedHashMap<>();
+        for (Map.Entry<String, Properties> bundle : bundles.entrySet()) {
+            Object[] values = new Object[keys.length];
+            long ownedValuesSize = 0;
+            for (int i = 0; i < keys.length; i++) {
+                String value = bundle.getValue().getProperty(keys[i]);
+                if (value == null) {
+                    continue;
+                }
+                Object stored = distinctValues.get(value);
+                if (stored == null) {
+                    stored = utf8Values ? value.getBytes(UTF_8) : value;
+                    distinctValues.put(value, stored);
+                    ownedValuesSize += storedValueSize(stored);
+                }
+                values[i] = stored;
+            }
+            compactBundles.put(bundle.getKey(), values);
+            usage.put(bundle.getKey(), arraySize(values.length, REFERENCE) + ownedValuesSize);
+        }
+        this.bundles = Collections.unmodifiableMap(compactBundles);
+        this.heapUsage = Collections.unmodifiableMap(usage);
+    }
+
+    public String getProperty(String bundle, String key) {
+        Object[] values = bundles.get(bundle);
+        if (values == null || key == null) {
+            return null;
+        }
+        int index = Arrays.binarySearch(keys, key);
+        if (index < 0) {
+            return null;
+        }
+        Object value = values[index];
+        if (value instanceof byte[]) {
+            return new String((byte[]) value, UTF_8);
+        }
+        return (String) value;
+    }
+
+    public Set<String> getBundleNames() {
+        return bundles.keySet();
+    }
+
+    public int getKeyCount() {
+        return keys.length;
+    }
+
+    public boolean isUtf8Values() {
+        return utf8Values;
+    }
+
+    /**
+     * Estimert heap-bruk for bundlen: verdi-tabellen pluss verdiene som ble lagt til av denne bundlen.
+     * Verdier som er delt med en tidligere bundle, og den delte nøkkel-ordlisten, telles ikke med.
+     */
+    public long getHeapUsage(String bundle) {
+        Long usage = heapUsage.get(bundle);
+        return usage == null ? 0 : usage;
+    }
+
+    /**
+     * Estimert heap-bruk for nøkkel-ordlisten som deles av alle bundles.
+     */
+    public long getSharedKeysHeapUsage() {
+        return sharedKeysHeapUsage;
+    }
+
+    public long getTotalHeapUsage() {
+        long total = sharedKeysHeapUsage;
+        for (long usage : heapUsage.values()) {
+            total += usage;
+        }
+        return total;
+    }
+
+    /**
+     * Estimert heap-bruk for et vanlig {@link Properties}-objekt, til sammenligning med {@link #getHeapUsage(String)}.
+     */
+    public static long estimateHeapUsage(Properties properties) {
+        int capacity = 1;
+        while (capacity * 3 < properties.size() * 4) {
+            capacity <<= 1;
+        }
+        long size = HASHTABLE_SHALLOW + arraySize(Math.max(capacity, 11), REFERENCE);
+        for (String key : properties.stringPropertyNames()) {
+            size += HASHTABLE_ENTRY + stringSize(key) + stringSize(properties.getProperty(key));
+        }
+        return size;
+    }
+
+    private static String[] collectSortedKeys(Iterable<Properties> bundles) {
+        Set<String> sortedKeys = new TreeSet<>();
+        for (Properties properties : bundles) {
+            sortedKeys.addAll(properties.stringPropertyNames());
+        }
+        return sortedKeys.toArray(new String[sortedKeys.size()]);
+    }
+
+    private static long storedValueSize(Object value) {
+        if (value instanceof byte[]) {
+            return arraySize(((byte[]) value).length, 1);
+        }
+        return stringSize((String) value);
+    }
+
+    private static long sumStringSizes(String[] strings) {
+        long size = 0;
+        for (String string : strings) {
+            size += stringSize(string);
+        }
+        return size;
+    }
+
+    private static long stringSize(String string) {
+        return STRING_SHALLOW + arraySize(string.length(), 2);
+    }
+
+    private static long arraySize(int length, int elementSize) {
+        return align(ARRAY_HEADER + (long) length * elementSize);
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+}
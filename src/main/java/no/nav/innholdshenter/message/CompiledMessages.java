@@ -0,0 +1,49 @@
+package no.nav.innholdshenter.message;
+
+import java.text.MessageFormat;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Kompilerte MessageFormat-maler for én versjon av et properties-sett. Hver mal parses første gang
+ * den brukes og gjenbrukes til properties-settet byttes ut i cachen.
+ */
+class CompiledMessages {
+
+    private final Properties properties;
+    private final Locale locale;
+    private final ConcurrentMap<String, MessageFormat> formats = new ConcurrentHashMap<>();
+
+    CompiledMessages(Properties properties, Locale locale) {
+        this.properties = properties;
+        this.locale = locale;
+    }
+
+    boolean isCompiledFrom(Properties properties) {
+        return this.properties == properties;
+    }
+
+    /**
+     * @return formatert tekst, eller null hvis key ikke finnes
+     */
+    String format(String key, Object... args) {
+        MessageFormat format = formats.get(key);
+        if (format == null) {
+            String pattern = properties.getProperty(key);
+            if (pattern == null) {
+                return null;
+            }
+            format = new MessageFormat(pattern, locale);
+            MessageFormat existing = formats.putIfAbsent(key, format);
+            if (existing != null) {
+                format = existing;
+            }
+        }
+        // MessageFormat er ikke trådsikker
+        synchronized (format) {
+            return format.format(args);
+        }
+    }
+}
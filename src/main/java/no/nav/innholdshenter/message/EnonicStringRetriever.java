@@ -6,7 +6,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /**
@@ -21,6 +24,7 @@ public class EnonicStringRetriever extends FixedSizeMap implements StringRetriev
 
     private String propertiesPath;
     private ContentRetriever contentRetriever;
+    private final Map<String, CompiledMessages> compiledMessages = new ConcurrentHashMap<>();
 
     public EnonicStringRetriever(ContentRetriever vsRetriever, String propertiesPath) {
         super(new HashMap<Object, String>());
@@ -46,13 +50,7 @@ public class EnonicStringRetriever extends FixedSizeMap implements StringRetriev
 
     public String retrieveString(String key, String locale, String variant) {
         try {
-            String path = propertiesPath;
-            if (variant == null) {
-                path += emptyStringIfNull(locale) + "&variant=";
-            } else {
-                path += getPropertiesPath(locale, variant);
-            }
-            Properties properties = contentRetriever.getProperties(path);
+            Properties properties = contentRetriever.getProperties(createPath(locale, variant));
             String value = properties.getProperty(key.trim());
             return (value != null) ? value : String.format(MISSING_KEY_TEMPLATE, key, locale, variant);
         } catch (RuntimeException e) {
@@ -61,6 +59,50 @@ public class EnonicStringRetriever extends FixedSizeMap implements StringRetriev
         }
     }
 
+    /**
+     * Som {@link #retrieveString(String, String)}, men formaterer teksten med args. Malen kompileres én gang
+     * per versjon av properties-settet i stedet for ved hvert kall, slik {@code MessageFormat.format} gjør.
+     */
+    @Override
+    public String retrieveFormatted(String key, String locale, Object... args) {
+        try {
+            String path = createPath(locale, null);
+            Properties properties = contentRetriever.getProperties(path);
+            String value = getCompiledMessages(path, properties, locale).format(key.trim(), args);
+            return (value != null) ? value : String.format(MISSING_KEY_TEMPLATE, key, locale, null);
+        } catch (RuntimeException e) {
+            logger.error(FEILMELDING_FEIL_VED_HENTING_AV_PROPERTY_MED_KEY, key, locale, null, e.getMessage());
+            return String.format(MISSING_KEY_TEMPLATE, key, locale, null);
+        }
+    }
+
+    private CompiledMessages getCompiledMessages(String path, Properties properties, String locale) {
+        CompiledMessages messages = compiledMessages.get(path);
+        if (messages == null || !messages.isCompiledFrom(properties)) {
+            messages = new CompiledMessages(properties, toLocale(locale));
+            compiledMessages.put(path, messages);
+        }
+        return messages;
+    }
+
+    private String createPath(String locale, String variant) {
+        if (variant == null) {
+            return propertiesPath + emptyStringIfNull(locale) + "&variant=";
+        }
+        return propertiesPath + getPropertiesPath(locale, variant);
+    }
+
+    private static Locale toLocale(String locale) {
+        if (locale == null || locale.isEmpty()) {
+            return Locale.getDefault(Locale.Category.FORMAT);
+        }
+        String[] parts = locale.split("_", 3);
+        if (parts.length == 1) {
+            return new Locale(parts[0]);
+        }
+        return parts.length == 2 ? new Locale(parts[0], parts[1]) : new Locale(parts[0], parts[1], parts[2]);
+    }
+
     private String getPropertiesPath(String locale, String variant) {
         return String.format("%s&variant=%s", emptyStringIfNull(locale), emptyStringIfNull(variant));
     }
@@ -1,5 +1,7 @@
 package no.nav.innholdshenter.message;
 
+import java.text.MessageFormat;
+
 /**
  * Interface for string retriever
  */
@@ -7,4 +9,13 @@ public interface StringRetriever {
     String retrieveString(String key, String locale);
 
     String retrieveString(String key, String locale, String variant);
+
+    /**
+     * Henter teksten for key og formaterer den som et {@link java.text.MessageFormat}-mønster med args.
+     * Implementasjoner som kan gjenbruke ferdig parsede mønstre bør overstyre denne.
+     */
+    default String retrieveFormatted(String key, String locale, Object... args) {
+        String value = retrieveString(key, locale);
+        return value == null ? null : MessageFormat.format(value, args);
+    }
 }
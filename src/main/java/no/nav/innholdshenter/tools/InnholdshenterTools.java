@@ -8,8 +8,6 @@ import org.slf4j.LoggerFactory;
 
 import java.net.URISyntaxException;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class InnholdshenterTools {
     private static final Logger logger = LoggerFactory.getLogger(InnholdshenterTools.class);
@@ -29,16 +27,7 @@ public class InnholdshenterTools {
     }
 
     public static boolean urlMatchesPatternInList(String innerUrl, List<String> list) {
-        for (String patternAsString : list) {
-            if (patternAsString != null && patternAsString.length() > 0) {
-                Pattern pattern = Pattern.compile(patternAsString);
-                Matcher matcher = pattern.matcher(innerUrl);
-                if (matcher.find()) {
-                    return true;
-                }
-            }
-        }
-        return false;
+        return RouteMatcher.finding(list).matches(innerUrl);
     }
 
     /**
@@ -0,0 +1,338 @@
+package no.nav.innholdshenter.tools;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Matcher en URI mot en ordnet liste med regex-mønstre. Mønstrene kompileres én gang per liste: rene stier
+ * (f.eks. {@code ^/sbl/ag.*} eller {@code .*isAlive.*}) legges i et trie eller sjekkes som tekst, og resten slås
+ * sammen til én regex med ett alternativ per mønster. Første mønster i listen som matcher vinner, som før.
+ */
+public final class RouteMatcher {
+
+    private static final int MAX_MATCHERS = 256;
+    private static final int MAX_MEMOIZED_URIS = 1000;
+    private static final int NO_MATCH = -1;
+    private static final String METACHARACTERS = "\\^$.|?*+()[]{}";
+    private static final String ANY = ".*";
+
+    private static final ConcurrentMap<List<String>, RouteMatcher> MATCHING = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<List<String>, RouteMatcher> FINDING = new ConcurrentHashMap<>();
+
+    private final List<String> patterns;
+    private final boolean wholeInput;
+    private final int flags;
+    private final TrieNode trie = new TrieNode();
+    private final List<Literal> containsLiterals = new ArrayList<>();
+    private final List<Integer> regexIndexes = new ArrayList<>();
+    private Pattern combined;
+    private int[] combinedGroups;
+    private final Map<Integer, Pattern> separate = new TreeMap<>();
+    private final ConcurrentMap<String, Integer> memo = new ConcurrentHashMap<>();
+
+    private RouteMatcher(List<String> patterns, boolean wholeInput) {
+        this.patterns = patterns;
+        this.wholeInput = wholeInput;
+        this.flags = wholeInput ? Pattern.CASE_INSENSITIVE | Pattern.DOTALL : 0;
+        for (int i = 0; i < patterns.size(); i++) {
+            String pattern = patterns.get(i);
+            if (pattern == null || (!wholeInput && pattern.isEmpty())) {
+                continue;
+            }
+            if (!addLiteral(pattern, i)) {
+                regexIndexes.add(i);
+            }
+        }
+        compileRegexes();
+    }
+
+    /**
+     * Mønstre som skal matche hele URI-en, uten hensyn til store og små bokstaver, som
+     * {@code DecoratorFilterUtils.createMatcher(pattern, uri).matches()}.
+     */
+    public static RouteMatcher matching(Collection<String> patterns) {
+        return get(MATCHING, patterns, true);
+    }
+
+    /**
+     * Mønstre som skal finnes et sted i URL-en, som {@code Pattern.compile(pattern).matcher(url).find()}.
+     * Tomme mønstre ignoreres. Her er det bare {@link #matches(String)} som er entydig, siden regexene
+     * sammen finner det tidligste treffet i URL-en og ikke det første mønsteret.
+     */
+    public static RouteMatcher finding(Collection<String> patterns) {
+        return get(FINDING, patterns, false);
+    }
+
+    private static RouteMatcher get(ConcurrentMap<List<String>, RouteMatcher> matchers, Collection<String> patterns, boolean wholeInput) {
+        List<String> key = patterns instanceof List ? (List<String>) patterns : new ArrayList<>(patterns);
+        RouteMatcher routeMatcher = matchers.get(key);
+        if (routeMatcher == null) {
+            List<String> snapshot = Collections.unmodifiableList(new ArrayList<>(patterns));
+            routeMatcher = new RouteMatcher(snapshot, wholeInput);
+            if (matchers.size() >= MAX_MATCHERS) {
+                matchers.clear();
+            }
+            matchers.put(snapshot, routeMatcher);
+        }
+        return routeMatcher;
+    }
+
+    public boolean matches(String uri) {
+        return firstMatch(uri) != NO_MATCH;
+    }
+
+    /**
+     * @return første mønster i listen som matcher, eller null
+     */
+    public String firstMatchingPattern(String uri) {
+        int index = firstMatch(uri);
+        return index == NO_MATCH ? null : patterns.get(index);
+    }
+
+    private int firstMatch(String uri) {
+        if (patterns.isEmpty()) {
+            return NO_MATCH;
+        }
+        Integer memoized = memo.get(uri);
+        if (memoized != null) {
+            return memoized;
+        }
+        int index = findFirstMatch(uri);
+        if (memo.size() >= MAX_MEMOIZED_URIS) {
+            memo.clear();
+        }
+        memo.put(uri, index);
+        return index;
+    }
+
+    private int findFirstMatch(String uri) {
+        String input = wholeInput ? toLowerCaseAscii(uri) : uri;
+        int best = trie.firstMatch(input, patterns.size());
+        for (Literal literal : containsLiterals) {
+            if (literal.index >= best) {
+                break;
+            }
+            if (input.contains(literal.text)) {
+                best = literal.index;
+                break;
+            }
+        }
+        if (regexIndexes.isEmpty() || regexIndexes.get(0) >= best) {
+            return best == patterns.size() ? NO_MATCH : best;
+        }
+
+        if (combined != null) {
+            Matcher matcher = combined.matcher(uri);
+            if (wholeInput ? matcher.matches() : matcher.find()) {
+                for (int i = 0; i < combinedGroups.length; i++) {
+                    if (combinedGroups[i] > 0 && matcher.start(combinedGroups[i]) != -1) {
+                        best = Math.min(best, regexIndexes.get(i));
+                        break;
+                    }
+                }
+            }
+        }
+        for (Map.Entry<Integer, Pattern> pattern : separate.entrySet()) {
+            if (pattern.getKey() >= best) {
+                break;
+            }
+            Matcher matcher = pattern.getValue().matcher(uri);
+            if (wholeInput ? matcher.matches() : matcher.find()) {
+                best = pattern.getKey();
+                break;
+            }
+        }
+        return best == patterns.size() ? NO_MATCH : best;
+    }
+
+    private boolean addLiteral(String pattern, int index) {
+        if (!wholeInput) {
+            String literal = unescapeLiteral(pattern);
+            if (literal == null) {
+                return false;
+            }
+            containsLiterals.add(new Literal(literal, index));
+            return true;
+        }
+
+        String body = pattern;
+        if (body.startsWith("^")) {
+            body = body.substring(1);
+        }
+        if (body.endsWith("$") && !body.endsWith("\\$")) {
+            body = body.substring(0, body.length() - 1);
+        }
+        boolean anyBefore = body.startsWith(ANY);
+        if (anyBefore) {
+            body = body.substring(ANY.length());
+        }
+        boolean anyAfter = body.endsWith(ANY) && !body.endsWith("\\" + ANY);
+        if (anyAfter) {
+            body = body.substring(0, body.length() - ANY.length());
+        }
+        String literal = unescapeLiteral(body);
+        if (literal == null || (anyBefore && !anyAfter)) {
+            return false;
+        }
+        literal = toLowerCaseAscii(literal);
+        if (anyBefore) {
+            containsLiterals.add(new Literal(literal, index));
+        } else {
+            trie.add(literal, index, anyAfter);
+        }
+        return true;
+    }
+
+    /**
+     * @return teksten mønsteret matcher, eller null hvis mønsteret er en regex
+     */
+    private static String unescapeLiteral(String pattern) {
+        StringBuilder literal = new StringBuilder(pattern.length());
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '\\') {
+                if (i + 1 == pattern.length() || Character.isLetterOrDigit(pattern.charAt(i + 1))) {
+                    return null;
+                }
+                literal.append(pattern.charAt(++i));
+            } else if (METACHARACTERS.indexOf(c) >= 0) {
+                return null;
+            } else {
+                literal.append(c);
+            }
+        }
+        return literal.toString();
+    }
+
+    /**
+     * Slår sammen regex-mønstrene til ett alternativ per mønster. Mønstre som ikke tåler å pakkes inn i en gruppe
+     * (tilbakereferanser, quoting, kommentarer) kompileres hver for seg.
+     */
+    private void compileRegexes() {
+        StringBuilder alternatives = new StringBuilder();
+        List<Integer> groups = new ArrayList<>();
+        int group = 1;
+        for (int index : regexIndexes) {
+            String pattern = patterns.get(index);
+            if (!canBeCombined(pattern)) {
+                separate.put(index, Pattern.compile(pattern, flags));
+                groups.add(0);
+                continue;
+            }
+            int groupCount = Pattern.compile(pattern, flags).matcher("").groupCount();
+            if (alternatives.length() > 0) {
+                alternatives.append('|');
+            }
+            alternatives.append('(').append(pattern).append(')');
+            groups.add(group);
+            group += groupCount + 1;
+        }
+        if (alternatives.length() == 0) {
+            return;
+        }
+        try {
+            Pattern pattern = Pattern.compile(alternatives.toString(), flags);
+            if (pattern.matcher("").groupCount() == group - 1) {
+                combined = pattern;
+                combinedGroups = new int[groups.size()];
+                for (int i = 0; i < groups.size(); i++) {
+                    combinedGroups[i] = groups.get(i);
+                }
+                return;
+            }
+        } catch (PatternSyntaxException e) {
+            // kompileres hver for seg under
+        }
+        for (int index : regexIndexes) {
+            separate.put(index, Pattern.compile(patterns.get(index), flags));
+        }
+    }
+
+    private static boolean canBeCombined(String pattern) {
+        if (pattern.contains("\\Q") || pattern.contains("\\k") || pattern.contains("#") || pattern.endsWith("\\")) {
+            return false;
+        }
+        for (int i = pattern.indexOf('\\'); i >= 0 && i + 1 < pattern.length(); i = pattern.indexOf('\\', i + 2)) {
+            if (Character.isDigit(pattern.charAt(i + 1))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String toLowerCaseAscii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                char[] chars = text.toCharArray();
+                for (int j = i; j < chars.length; j++) {
+                    if (chars[j] >= 'A' && chars[j] <= 'Z') {
+                        chars[j] += 'a' - 'A';
+                    }
+                }
+                return new String(chars);
+            }
+        }
+        return text;
+    }
+
+    private static final class Literal {
+        private final String text;
+        private final int index;
+
+        private Literal(String text, int index) {
+            this.text = text;
+            this.index = index;
+        }
+    }
+
+    private static final class TrieNode {
+        private final Map<Character, TrieNode> children = new HashMap<>();
+        private int prefixIndex = Integer.MAX_VALUE;
+        private int exactIndex = Integer.MAX_VALUE;
+
+        private void add(String literal, int index, boolean prefix) {
+            TrieNode node = this;
+            for (int i = 0; i < literal.length(); i++) {
+                TrieNode child = node.children.get(literal.charAt(i));
+                if (child == null) {
+                    child = new TrieNode();
+                    node.children.put(literal.charAt(i), child);
+                }
+                node = child;
+            }
+            if (prefix) {
+                node.prefixIndex = Math.min(node.prefixIndex, index);
+            } else {
+                node.exactIndex = Math.min(node.exactIndex, index);
+            }
+        }
+
+        /**
+         * @return laveste indeks blant stiene som matcher, eller noMatch
+         */
+        private int firstMatch(String input, int noMatch) {
+            int best = noMatch;
+            TrieNode node = this;
+            for (int i = 0; node != null; i++) {
+                best = Math.min(best, node.prefixIndex);
+                if (i == input.length()) {
+                    best = Math.min(best, node.exactIndex);
+                    break;
+                }
+                node = node.children.get(input.charAt(i));
+            }
+            return best;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package no.nav.innholdshenter.filter;
+
+import org.junit.Test;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class ActiveItemIndexTest {
+
+    private static final String MENU = "<ul><li><a href=\"/\">Forside</a></li><li><a href=\"/sbl/ag\">Arbeidsgiver</a></li>"
+            + "<li><a href='/sbl/ag/sok'>Søk</a></li><li><a href=\"#innhold\">Hopp</a></li></ul>";
+
+    @Test
+    public void shouldMarkLinkWithLongestParentPathWhenNoLinkToPageExists() {
+        String marked = ActiveItemIndex.build(MENU).markActiveItem(MENU, "/sbl/ag/sok/enkelt.do");
+
+        assertThat(marked, is(MENU.replace("<a href='/sbl/ag/sok'>", "<a class=\"active\" href='/sbl/ag/sok'>")));
+    }
+
+    @Test
+    public void shouldAddActiveToUnquotedClassAttribute() {
+        String menu = "<ul><li><a class=meny href=/sbl/ag>Arbeidsgiver</a></li><li><a CLASS=meny href=/dittnav>Ditt NAV</a></li></ul>";
+
+        String marked = ActiveItemIndex.build(menu).markActiveItem(menu, "/sbl/ag");
+
+        assertThat(marked, is(menu.replace("<a class=meny href=/sbl/ag>", "<a class=\"active meny\" href=/sbl/ag>")));
+    }
+
+    @Test
+    public void shouldLeaveMarkupUnchangedWhenNoLinkMatches() {
+        assertThat(ActiveItemIndex.build(MENU).markActiveItem(MENU, "/dittnav"), is(MENU));
+    }
+}
@@ -2,8 +2,10 @@ package no.nav.innholdshenter.filter;
 
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 public class ByteArrayServletOutputStreamTest {
@@ -18,7 +20,40 @@ public class ByteArrayServletOutputStreamTest {
             sut.write(b);
         }
 
-        assertEquals(str, sut.getByteArrayOutputStream().toString());
+        assertEquals(str, new String(sut.toByteArray()));
     }
 
+    @Test
+    public void shouldNotBorrowFromSharedPoolWithPublicConstructor() throws IOException {
+        int chunksInUse = ChunkPool.BYTES.getChunksInUse();
+        ByteArrayServletOutputStream sut = new ByteArrayServletOutputStream("UTF-8");
+
+        sut.write(new byte[ChunkPool.DEFAULT_CHUNK_SIZE * 2 + 1]);
+
+        assertEquals(ChunkPool.DEFAULT_CHUNK_SIZE * 2 + 1, sut.toByteArray().length);
+        assertEquals(chunksInUse, ChunkPool.BYTES.getChunksInUse());
+    }
+
+    @Test
+    public void shouldKeepOutputAcrossChunksAndReturnThemToPool() throws IOException {
+        ChunkPool<byte[]> chunkPool = new ChunkPool<>(byte[]::new, 4, 10);
+        ByteArrayServletOutputStream sut = new ByteArrayServletOutputStream("UTF-8", chunkPool, null);
+
+        byte[] bytes = "blåbærsyltetøy".getBytes("UTF-8");
+        sut.write(bytes, 0, 5);
+        sut.write(bytes[5]);
+        sut.write(bytes, 6, bytes.length - 6);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        sut.writeTo(out);
+        assertEquals("blåbærsyltetøy", sut.toString());
+        assertArrayEquals(bytes, out.toByteArray());
+        assertArrayEquals(bytes, sut.toByteArray());
+        assertEquals(5, chunkPool.getChunksInUse());
+
+        sut.release();
+
+        assertEquals(0, chunkPool.getChunksInUse());
+        assertEquals(5, chunkPool.getAvailableChunks());
+    }
 }
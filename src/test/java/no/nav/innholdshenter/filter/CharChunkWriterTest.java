@@ -0,0 +1,42 @@
+package no.nav.innholdshenter.filter;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class CharChunkWriterTest {
+
+    @Test
+    public void shouldEncodeOnceAcrossChunksWithSurrogatePairOnChunkBoundary() throws IOException {
+        ChunkPool<char[]> chunkPool = new ChunkPool<>(char[]::new, 4, 10);
+        CharChunkWriter sut = new CharChunkWriter("UTF-8", chunkPool, null);
+        String text = "abc😀 blåbær";
+
+        sut.write(text, 0, 5);
+        sut.write(text.toCharArray(), 5, text.length() - 5);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        sut.writeTo(out);
+        assertEquals(text, sut.toString());
+        assertEquals(text, new String(out.toByteArray(), "UTF-8"));
+
+        sut.release();
+        assertEquals(0, chunkPool.getChunksInUse());
+    }
+
+    @Test
+    public void shouldReplaceCharactersThatCannotBeEncodedLikeGetBytes() throws IOException {
+        CharChunkWriter sut = new CharChunkWriter("iso-8859-1", ChunkPool.CHARS, null);
+        String text = "æøå € 😀";
+        sut.write(text);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        sut.writeTo(out);
+        sut.release();
+
+        assertEquals(new String(text.getBytes("iso-8859-1"), "iso-8859-1"), new String(out.toByteArray(), "iso-8859-1"));
+    }
+}
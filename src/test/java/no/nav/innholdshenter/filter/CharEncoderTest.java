@@ -0,0 +1,36 @@
+package no.nav.innholdshenter.filter;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class CharEncoderTest {
+
+    @Test
+    public void shouldEncodeWithTwoEncodersInUseOnSameThread() throws IOException {
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        CharEncoder firstEncoder = new CharEncoder("UTF-8", first);
+        CharEncoder secondEncoder = new CharEncoder("iso-8859-1", second);
+
+        firstEncoder.write("blåbær");
+        secondEncoder.write("syltetøy");
+        firstEncoder.write("syltetøy");
+        secondEncoder.finish();
+        firstEncoder.finish();
+
+        assertEquals("blåbærsyltetøy", first.toString("UTF-8"));
+        assertEquals("syltetøy", second.toString("iso-8859-1"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldNotBeUsedAfterFinish() throws IOException {
+        CharEncoder charEncoder = new CharEncoder("UTF-8", new ByteArrayOutputStream());
+        charEncoder.finish();
+
+        charEncoder.finish();
+    }
+}
@@ -8,18 +8,27 @@ import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.mock.web.MockHttpServletResponse;
 
 import javax.imageio.ImageIO;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 
 import static java.util.Arrays.asList;
 import static no.nav.innholdshenter.filter.DecoratorFilter.ALREADY_DECORATED_HEADER;
@@ -27,6 +36,7 @@ import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.*;
 
@@ -140,6 +150,23 @@ public class DecoratorFilterTest {
         verify(contentRetriever).getPageContent("http://nav.no/fragments?appname=arbeid&activeitem=%2Fminside&header=true&footer=true");
     }
 
+    @Test
+    public void should_mark_active_item_locally_and_leave_activeitem_out_of_url() throws IOException, ServletException {
+        withDefaultFilterChain();
+        withFragments("header", "footer");
+        decoratorFilter.setShouldMarkActiveItemLocally();
+        request.setRequestURI("/minside/");
+        when(contentRetriever.getPageContent(anyString())).thenReturn("<div id=\"header\"><a href=\"/minside\">Min side</a><a class=\"lenke\" href=\"/annet\">Annet</a></div>"
+                + "<div id=\"footer\"><a class=\"lenke\" href=\"http://nav.no/minside?x=1\">Min side</a></div>");
+
+        decoratorFilter.doFilter(request, response, chain);
+
+        verify(contentRetriever).getPageContent("http://nav.no/fragments?appname=arbeid&header=true&footer=true");
+        assertThat(response.getContentAsString(), containsString("<a class=\"active\" href=\"/minside\">Min side</a>"));
+        assertThat(response.getContentAsString(), containsString("<a class=\"lenke\" href=\"/annet\">"));
+        assertThat(response.getContentAsString(), containsString("<a class=\"active lenke\" href=\"http://nav.no/minside?x=1\">"));
+    }
+
     @Test
     public void should_build_url_with_userrole_if_meta_tag_brukerstatus_exists() throws IOException, ServletException {
         chain = new FilterChain() {
@@ -317,6 +344,26 @@ public class DecoratorFilterTest {
         assertThat(response.getContentAsString(), containsString("<div class=\"col-md-12\"></div>"));
     }
 
+    @Test
+    public void should_keep_application_markup_as_written_when_removing_submenu() throws IOException, ServletException {
+        chain = (servletRequest, servletResponse) -> {
+            servletResponse.getWriter().write("<html><body>{{fragment.header}}<main id=\"maincontent\"><div class=\"row\"><div class=\"col-md-4\">{{fragment.submenu}}</div>"
+                    + "<div class=\"col-md-8\"><p>Uformatert<br>tekst</div></div></main></body></html>");
+            servletResponse.setContentType("text/html");
+        };
+        withFragments("header", "submenu");
+        decoratorFilter.setSubMenuPath("path/to/menu");
+        decoratorFilter.setNoSubmenuPatterns(asList(".*selftest.*"));
+        request.setRequestURI("/internal/selftest");
+        when(contentRetriever.getPageContent(anyString())).thenReturn("<div id=\"header\"><nav></nav></div><div id=\"submenu\"><ul>meny</ul></div>");
+
+        decoratorFilter.doFilter(request, response, chain);
+
+        assertThat(response.getContentAsString(), is("<html><body><nav></nav><main id=\"maincontent\"><div class=\"row\">"
+                + "<div class=\"col-md-12\"><p>Uformatert<br>tekst</div></div></main></body></html>"));
+        assertThat(response.getContentLength(), is(response.getContentAsByteArray().length));
+    }
+
     @Test
     public void should_not_remove_submenu_when_hodeFotKey_is_present_in_markup_and_requestUri_matches_no_submenu_pattern() throws IOException, ServletException {
         chain = (servletRequest, servletResponse) -> {
@@ -350,6 +397,35 @@ public class DecoratorFilterTest {
         decoratorFilter.doFilter(request, response, chain);
     }
 
+    @Test
+    public void should_write_non_html_response_straight_to_client_when_content_type_is_set_before_writing() throws IOException, ServletException {
+        withFragments("header", "footer");
+        List<Integer> bytesSeenByClientDuringChain = new ArrayList<>();
+        chain = (servletRequest, servletResponse) -> {
+            servletResponse.setContentType("application/json");
+            servletResponse.getOutputStream().write("{\"a\": \"{{fragment.header}}\"}".getBytes("UTF-8"));
+            bytesSeenByClientDuringChain.add(response.getContentAsByteArray().length);
+        };
+
+        decoratorFilter.doFilter(request, response, chain);
+
+        assertThat(bytesSeenByClientDuringChain.get(0), is(28));
+        assertThat(response.getContentAsString(), is("{\"a\": \"{{fragment.header}}\"}"));
+        verify(contentRetriever, times(0)).getPageContent(anyString());
+    }
+
+    @Test
+    public void should_discard_body_when_status_304_is_set_before_writing() throws IOException, ServletException {
+        chain = (servletRequest, servletResponse) -> {
+            ((HttpServletResponse) servletResponse).setStatus(304);
+            servletResponse.getWriter().write("hvaSomHelst");
+        };
+
+        decoratorFilter.doFilter(request, response, chain);
+
+        assertThat(response.getContentAsByteArray(), is("".getBytes()));
+    }
+
     @Test
     public void response_should_not_contain_a_body_when_status_code_is_304() throws IOException, ServletException, URISyntaxException {
         chain = (servletRequest, servletResponse) -> {
@@ -419,6 +495,210 @@ public class DecoratorFilterTest {
         verify(contentRetriever).getPageContent("http://nav.no/fragments?appname=arbeid&activeitem=%2Fsbl");
     }
 
+    @Test
+    public void prefetch_should_fetch_fragments_while_application_renders() throws IOException, ServletException {
+        withDefaultFilterChain();
+        withFragments("header", "footer");
+        decoratorFilter.setFragmentPrefetchThreads(1);
+        request.addHeader("Accept", "text/html,application/xhtml+xml,*/*;q=0.8");
+        List<String> fetchingThreads = Collections.synchronizedList(new ArrayList<String>());
+        when(contentRetriever.getPageContent(anyString())).thenAnswer(invocation -> {
+            fetchingThreads.add(Thread.currentThread().getName());
+            return "<div id=\"header\"><nav></nav></div><div id=\"footer\"><footer></footer></div>";
+        });
+
+        decoratorFilter.doFilter(request, response, chain);
+        decoratorFilter.destroy();
+
+        assertThat(response.getContentAsString(), is("<html><body><nav></nav><footer></footer></body></html>"));
+        verify(contentRetriever, times(1)).getPageContent("http://nav.no/fragments?appname=arbeid&header=true&footer=true");
+        assertThat(fetchingThreads.get(0), containsString("decorator-fragment-prefetch"));
+    }
+
+    @Test
+    public void prefetch_should_fetch_again_when_meta_tags_change_url() throws IOException, ServletException {
+        chain = (servletRequest, servletResponse) -> {
+            servletResponse.getWriter().write("<meta name=\"hodeFotKey\" content=\"/sbl\"><meta name=\"Brukerstatus\" content=\"ARBS\">");
+            servletResponse.setContentType("text/html");
+        };
+        request.setRequestURI("/meldekort");
+        decoratorFilter.setShouldIncludeActiveItem();
+        decoratorFilter.setFragmentPrefetchThreads(1);
+        request.addHeader("Accept", "text/html");
+
+        decoratorFilter.doFilter(request, response, chain);
+        decoratorFilter.destroy();
+
+        verify(contentRetriever).getPageContent("http://nav.no/fragments?appname=arbeid&activeitem=%2Fsbl&userrole=ARBS");
+    }
+
+    @Test
+    public void prefetch_should_not_fetch_for_requests_not_asking_for_html() throws IOException, ServletException {
+        chain = (servletRequest, servletResponse) -> {
+            servletResponse.setContentType("application/json");
+            servletResponse.getWriter().write("{}");
+        };
+        withFragments("header", "footer");
+        decoratorFilter.setFragmentPrefetchThreads(1);
+        request.addHeader("Accept", "application/json");
+
+        decoratorFilter.doFilter(request, response, chain);
+        decoratorFilter.destroy();
+
+        assertThat(response.getContentAsString(), is("{}"));
+        verify(contentRetriever, never()).getPageContent(anyString());
+    }
+
+    @Test
+    public void prefetch_should_fetch_for_urls_matching_prefetch_patterns() throws IOException, ServletException {
+        withDefaultFilterChain();
+        withFragments("header", "footer");
+        decoratorFilter.setFragmentPrefetchThreads(1);
+        decoratorFilter.setFragmentPrefetchPatterns(new ArrayList<>(asList("/minside.*")));
+        request.setRequestURI("/minside");
+        List<String> fetchingThreads = Collections.synchronizedList(new ArrayList<String>());
+        when(contentRetriever.getPageContent(anyString())).thenAnswer(invocation -> {
+            fetchingThreads.add(Thread.currentThread().getName());
+            return "<div id=\"header\"><nav></nav></div><div id=\"footer\"><footer></footer></div>";
+        });
+
+        decoratorFilter.doFilter(request, response, chain);
+        decoratorFilter.destroy();
+
+        assertThat(fetchingThreads.get(0), containsString("decorator-fragment-prefetch"));
+    }
+
+    @Test
+    public void async_should_decorate_off_the_container_thread() throws Exception {
+        AsyncRequest asyncRequest = new AsyncRequest();
+        withDefaultFilterChain();
+        withFragments("header", "footer");
+        decoratorFilter.setAsyncDecoration(1, 5000);
+        List<String> fetchingThreads = Collections.synchronizedList(new ArrayList<String>());
+        when(contentRetriever.getPageContent(anyString())).thenAnswer(invocation -> {
+            fetchingThreads.add(Thread.currentThread().getName());
+            return "<div id=\"header\"><nav></nav></div><div id=\"footer\"><footer></footer></div>";
+        });
+
+        decoratorFilter.doFilter(asyncRequest, response, chain);
+
+        assertThat(asyncRequest.completed.await(5, TimeUnit.SECONDS), is(true));
+        decoratorFilter.destroy();
+        assertThat(response.getContentAsString(), is("<html><body><nav></nav><footer></footer></body></html>"));
+        assertThat(fetchingThreads.get(0), containsString("decorator-async"));
+    }
+
+    @Test
+    public void async_should_write_undecorated_page_on_timeout() throws Exception {
+        AsyncRequest asyncRequest = new AsyncRequest();
+        withDefaultFilterChain();
+        withFragments("header", "footer");
+        decoratorFilter.setAsyncDecoration(1, 10);
+        CountDownLatch enonicStall = new CountDownLatch(1);
+        when(contentRetriever.getPageContent(anyString())).thenAnswer(invocation -> {
+            enonicStall.await(5, TimeUnit.SECONDS);
+            return "<div id=\"header\"><nav></nav></div>";
+        });
+
+        decoratorFilter.doFilter(asyncRequest, response, chain);
+        for (AsyncListener listener : asyncRequest.listeners) {
+            listener.onTimeout(new AsyncEvent(asyncRequest.asyncContext));
+        }
+        enonicStall.countDown();
+        decoratorFilter.destroy();
+
+        assertThat(asyncRequest.completed.getCount(), is(0L));
+        assertThat(response.getContentAsString(), is("<html><body></body></html>"));
+    }
+
+    @Test
+    public void async_timeout_during_write_should_wait_for_the_write_and_complete_once() throws Exception {
+        AsyncRequest asyncRequest = new AsyncRequest();
+        withDefaultFilterChain();
+        withFragments("header", "footer");
+        decoratorFilter.setAsyncDecoration(1, 5000);
+        CountDownLatch writeStarted = new CountDownLatch(1);
+        CountDownLatch writeReleased = new CountDownLatch(1);
+        MockHttpServletResponse slowResponse = new MockHttpServletResponse() {
+            @Override
+            public ServletOutputStream getOutputStream() {
+                ServletOutputStream outputStream = super.getOutputStream();
+                return new ServletOutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        write(new byte[]{(byte) b}, 0, 1);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        writeStarted.countDown();
+                        try {
+                            writeReleased.await(5, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            throw new IOException(e);
+                        }
+                        outputStream.write(b, off, len);
+                    }
+                };
+            }
+        };
+
+        decoratorFilter.doFilter(asyncRequest, slowResponse, chain);
+        assertThat(writeStarted.await(5, TimeUnit.SECONDS), is(true));
+        CountDownLatch timeoutReturned = new CountDownLatch(1);
+        Thread containerThread = new Thread(() -> {
+            try {
+                for (AsyncListener listener : asyncRequest.listeners) {
+                    listener.onTimeout(new AsyncEvent(asyncRequest.asyncContext));
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            timeoutReturned.countDown();
+        });
+        containerThread.start();
+
+        assertThat(timeoutReturned.await(100, TimeUnit.MILLISECONDS), is(false));
+        writeReleased.countDown();
+        assertThat(timeoutReturned.await(5, TimeUnit.SECONDS), is(true));
+        decoratorFilter.destroy();
+
+        verify(asyncRequest.asyncContext, times(1)).complete();
+        assertThat(slowResponse.getContentAsString(), is("<html><body><nav></nav><footer></footer></body></html>"));
+    }
+
+    private static class AsyncRequest extends MockHttpServletRequest {
+        private final AsyncContext asyncContext = mock(AsyncContext.class);
+        private final List<AsyncListener> listeners = new ArrayList<>();
+        private final CountDownLatch completed = new CountDownLatch(1);
+        private volatile boolean asyncStarted;
+
+        AsyncRequest() {
+            doAnswer(invocation -> listeners.add((AsyncListener) invocation.getArguments()[0])).when(asyncContext).addListener(any(AsyncListener.class));
+            doAnswer(invocation -> {
+                asyncStarted = false;
+                completed.countDown();
+                return null;
+            }).when(asyncContext).complete();
+        }
+
+        @Override
+        public boolean isAsyncSupported() {
+            return true;
+        }
+
+        @Override
+        public AsyncContext startAsync(ServletRequest servletRequest, ServletResponse servletResponse) {
+            asyncStarted = true;
+            return asyncContext;
+        }
+
+        @Override
+        public boolean isAsyncStarted() {
+            return asyncStarted;
+        }
+    }
+
     @Test
     public void should_send_tns_value_based_on_request_uri_and_tns_values() throws IOException, ServletException {
         chain = (servletRequest, servletResponse) -> {
@@ -449,6 +729,314 @@ public class DecoratorFilterTest {
         assertThat(response.getContentLength(), is(response.getContentAsByteArray().length));
     }
 
+    @Test
+    public void should_fetch_only_fragments_with_placeholders_in_page() throws IOException, ServletException {
+        chain = (servletRequest, servletResponse) -> {
+            servletResponse.getWriter().write("<html><body>{{fragment.footer}}</body></html>");
+            servletResponse.setContentType("text/html");
+        };
+        withFragments("header", "footer");
+        decoratorFilter.setShouldFetchOnlyFragmentsInPage(true);
+
+        decoratorFilter.doFilter(request, response, chain);
+
+        verify(contentRetriever).getPageContent("http://nav.no/fragments?appname=arbeid&footer=true");
+        assertThat(response.getContentAsString(), is("<html><body><footer></footer></body></html>"));
+    }
+
+    @Test
+    public void should_not_fetch_fragments_for_page_without_placeholders() throws IOException, ServletException {
+        chain = (servletRequest, servletResponse) -> {
+            servletResponse.getWriter().write("<html><body>Utskrift</body></html>");
+            servletResponse.setContentType("text/html");
+        };
+        withFragments("header", "footer");
+        decoratorFilter.setShouldFetchOnlyFragmentsInPage(true);
+
+        decoratorFilter.doFilter(request, response, chain);
+
+        verify(contentRetriever, never()).getPageContent(anyString());
+        assertThat(response.getContentAsString(), is("<html><body>Utskrift</body></html>"));
+    }
+
+    @Test
+    public void budget_should_use_last_known_fragments_when_enonic_stalls() throws Exception {
+        withDefaultFilterChain();
+        withFragments("header", "footer");
+        decoratorFilter.setDecorationBudget(50, 2);
+        decoratorFilter.doFilter(request, response, chain);
+
+        CountDownLatch enonicStall = new CountDownLatch(1);
+        when(contentRetriever.getPageContent(anyString())).thenAnswer(invocation -> {
+            enonicStall.await(5, TimeUnit.SECONDS);
+            return "<div id=\"header\"><nav>ny</nav></div>";
+        });
+        MockHttpServletResponse stalledResponse = new MockHttpServletResponse();
+        decoratorFilter.doFilter(new MockHttpServletRequest(), stalledResponse, chain);
+        enonicStall.countDown();
+        decoratorFilter.destroy();
+
+        assertThat(stalledResponse.getContentAsString(), is("<html><body><nav></nav><footer></footer></body></html>"));
+        assertThat(decoratorFilter.getDecorationsWithinBudget(), is(1L));
+        assertThat(decoratorFilter.getDecorationsWithLastKnownFragments(), is(1L));
+    }
+
+    @Test
+    public void budget_should_remove_placeholders_when_enonic_stalls_and_nothing_is_cached() throws Exception {
+        withDefaultFilterChain();
+        withFragments("header", "footer");
+        decoratorFilter.setDecorationBudget(20, 1);
+        CountDownLatch enonicStall = new CountDownLatch(1);
+        when(contentRetriever.getPageContent(anyString())).thenAnswer(invocation -> {
+            enonicStall.await(5, TimeUnit.SECONDS);
+            return "<div id=\"header\"><nav></nav></div>";
+        });
+
+        decoratorFilter.doFilter(request, response, chain);
+        enonicStall.countDown();
+        decoratorFilter.destroy();
+
+        assertThat(response.getContentAsString(), is("<html><body></body></html>"));
+        assertThat(decoratorFilter.getDecorationsWithoutFragments(), is(1L));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void budget_should_require_fetch_threads() {
+        decoratorFilter.setDecorationBudget(20, 0);
+    }
+
+    @Test
+    public void output_cache_should_write_cached_page_until_fragments_change()throws IOException, ServletException {
+        List<Integer> applicationCalls = new ArrayList<>();
+        chain = (servletRequest, servletResponse) -> {
+            applicationCalls.add(1);
+            ((HttpServletResponse) servletResponse).setHeader("Cache-Control", "public, max-age=60");
+            servletResponse.setContentType("text/html");
+            servletResponse.getWriter().write("<html><body>{{fragment.header}}</body></html>");
+        };
+        withFragments("header");
+        decoratorFilter.setOutputCachePatterns(new ArrayList<>(asList(".*/info.*")));
+
+        decoratorFilter.doFilter(new MockHttpServletRequest("GET", "/info"), new MockHttpServletResponse(), chain);
+        MockHttpServletResponse cachedResponse = new MockHttpServletResponse();
+        decoratorFilter.doFilter(new MockHttpServletRequest("GET", "/info"), cachedResponse, chain);
+
+        assertThat(applicationCalls.size(), is(1));
+        assertThat(cachedResponse.getContentAsString(), is("<html><body><nav></nav></body></html>"));
+        assertThat(cachedResponse.getContentLength(), is(cachedResponse.getContentAsByteArray().length));
+        assertThat(cachedResponse.getHeader("Cache-Control"), is("public, max-age=60"));
+        assertThat(decoratorFilter.getOutputCacheHits(), is(1L));
+
+        when(contentRetriever.getPageContent(anyString())).thenReturn("<div id=\"header\"><nav>ny</nav></div>");
+        MockHttpServletResponse changedResponse = new MockHttpServletResponse();
+        decoratorFilter.doFilter(new MockHttpServletRequest("GET", "/info"), changedResponse, chain);
+
+        assertThat(applicationCalls.size(), is(2));
+        assertThat(changedResponse.getContentAsString(), containsString("ny"));
+        assertThat(decoratorFilter.getOutputCacheHits(), is(1L));
+        assertThat(decoratorFilter.getOutputCacheStale(), is(1L));
+    }
+
+    @Test
+    public void output_cache_should_not_cache_pages_with_cookies() throws IOException, ServletException {
+        List<Integer> applicationCalls = new ArrayList<>();
+        chain = (servletRequest, servletResponse) -> {
+            applicationCalls.add(1);
+            ((HttpServletResponse) servletResponse).addCookie(new Cookie("valg", "1"));
+            servletResponse.setContentType("text/html");
+            servletResponse.getWriter().write("<html><body>{{fragment.header}}</body></html>");
+        };
+        withFragments("header");
+        decoratorFilter.setOutputCachePatterns(new ArrayList<>(asList(".*/info.*")));
+
+        decoratorFilter.doFilter(new MockHttpServletRequest("GET", "/info"), new MockHttpServletResponse(), chain);
+        decoratorFilter.doFilter(new MockHttpServletRequest("GET", "/info"), new MockHttpServletResponse(), chain);
+
+        assertThat(applicationCalls.size(), is(2));
+        assertThat(decoratorFilter.getOutputCacheBytes(), is(0L));
+    }
+
+    @Test
+    public void etag_should_answer_not_modified_without_body() throws IOException, ServletException {
+        withDefaultFilterChain();
+        withFragments("header", "footer");
+        decoratorFilter.setShouldAddEtag(true);
+        decoratorFilter.doFilter(request, response, chain);
+        String etag = response.getHeader("ETag");
+
+        MockHttpServletRequest conditionalRequest = new MockHttpServletRequest();
+        conditionalRequest.addHeader("If-None-Match", "\"annen\", " + etag);
+        MockHttpServletResponse notModifiedResponse = new MockHttpServletResponse();
+        decoratorFilter.doFilter(conditionalRequest, notModifiedResponse, chain);
+
+        assertThat(etag, containsString("-"));
+        assertThat(notModifiedResponse.getStatus(), is(HttpServletResponse.SC_NOT_MODIFIED));
+        assertThat(notModifiedResponse.getContentAsByteArray().length, is(0));
+        assertThat(notModifiedResponse.getHeader("ETag"), is(etag));
+    }
+
+    @Test
+    public void etag_should_change_when_fragments_change() throws IOException, ServletException {
+        withDefaultFilterChain();
+        withFragments("header", "footer");
+        decoratorFilter.setShouldAddEtag(true);
+        decoratorFilter.doFilter(request, response, chain);
+        String etag = response.getHeader("ETag");
+
+        when(contentRetriever.getPageContent(anyString())).thenReturn("<div id=\"header\"><nav>ny</nav></div>");
+        MockHttpServletRequest conditionalRequest = new MockHttpServletRequest();
+        conditionalRequest.addHeader("If-None-Match", etag);
+        MockHttpServletResponse changedResponse = new MockHttpServletResponse();
+        decoratorFilter.doFilter(conditionalRequest, changedResponse, chain);
+
+        assertThat(changedResponse.getStatus(), is(HttpServletResponse.SC_OK));
+        assertThat(changedResponse.getHeader("ETag"), not(etag));
+        assertThat(changedResponse.getContentAsString(), containsString("ny"));
+    }
+
+    @Test
+    public void gzip_should_compress_to_same_page_for_clients_accepting_gzip() throws IOException, ServletException {
+        withDefaultFilterChain();
+        withFragments("header", "footer");
+        decoratorFilter.doFilter(request, response, chain);
+
+        decoratorFilter.setShouldGzipOutput(true);
+        MockHttpServletRequest gzipRequest = new MockHttpServletRequest();
+        gzipRequest.addHeader("Accept-Encoding", "deflate, gzip;q=0.8");
+        MockHttpServletResponse gzipResponse = new MockHttpServletResponse();
+        decoratorFilter.doFilter(gzipRequest, gzipResponse, chain);
+
+        assertThat(gzipResponse.getHeader("Content-Encoding"), is("gzip"));
+        assertThat(gzipResponse.getHeader("Vary"), is("Accept-Encoding"));
+        assertThat(gzipResponse.getContentLength(), is(gzipResponse.getContentAsByteArray().length));
+        GZIPInputStream unzipped = new GZIPInputStream(new ByteArrayInputStream(gzipResponse.getContentAsByteArray()));
+        ByteArrayOutputStream page = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        for (int count = unzipped.read(buffer); count != -1; count = unzipped.read(buffer)) {
+            page.write(buffer, 0, count);
+        }
+        assertThat(new String(page.toByteArray(), "UTF-8"), is(response.getContentAsString()));
+    }
+
+    @Test
+    public void gzip_should_not_compress_for_clients_not_accepting_gzip() throws IOException, ServletException {
+        withDefaultFilterChain();
+        withFragments("header", "footer");
+        decoratorFilter.setShouldGzipOutput(true);
+        request.addHeader("Accept-Encoding", "gzip;q=0, br");
+
+        decoratorFilter.doFilter(request, response, chain);
+
+        assertThat(response.getHeader("Content-Encoding"), is((Object) null));
+        assertThat(response.getHeader("Vary"), is("Accept-Encoding"));
+        assertThat(response.getContentAsString(), containsString("<html>"));
+    }
+
+    @Test
+    public void gzip_should_give_compressed_page_its_own_etag() throws IOException, ServletException {
+        withDefaultFilterChain();
+        withFragments("header", "footer");
+        decoratorFilter.setShouldAddEtag(true);
+        decoratorFilter.setShouldGzipOutput(true);
+        decoratorFilter.doFilter(request, response, chain);
+        String etag = response.getHeader("ETag");
+
+        MockHttpServletRequest gzipRequest = new MockHttpServletRequest();
+        gzipRequest.addHeader("Accept-Encoding", "gzip");
+        gzipRequest.addHeader("If-None-Match", etag);
+        MockHttpServletResponse gzipResponse = new MockHttpServletResponse();
+        decoratorFilter.doFilter(gzipRequest, gzipResponse, chain);
+
+        assertThat(gzipResponse.getStatus(), is(HttpServletResponse.SC_OK));
+        assertThat(gzipResponse.getHeader("Content-Encoding"), is("gzip"));
+        assertThat(gzipResponse.getHeader("ETag"), not(etag));
+
+        MockHttpServletRequest conditionalRequest = new MockHttpServletRequest();
+        conditionalRequest.addHeader("Accept-Encoding", "gzip");
+        conditionalRequest.addHeader("If-None-Match", gzipResponse.getHeader("ETag"));
+        MockHttpServletResponse notModifiedResponse = new MockHttpServletResponse();
+        decoratorFilter.doFilter(conditionalRequest, notModifiedResponse, chain);
+
+        assertThat(notModifiedResponse.getStatus(), is(HttpServletResponse.SC_NOT_MODIFIED));
+        assertThat(notModifiedResponse.getHeader("Vary"), is("Accept-Encoding"));
+    }
+
+    @Test
+    public void gzip_should_add_vary_to_pages_written_to_and_from_output_cache() throws IOException, ServletException {
+        chain = (servletRequest, servletResponse) -> {
+            ((HttpServletResponse) servletResponse).setHeader("Cache-Control", "public, max-age=60");
+            servletResponse.setContentType("text/html");
+            servletResponse.getWriter().write("<html><body>{{fragment.header}}</body></html>");
+        };
+        withFragments("header");
+        decoratorFilter.setOutputCachePatterns(new ArrayList<>(asList(".*/info.*")));
+        decoratorFilter.setShouldGzipOutput(true);
+
+        MockHttpServletResponse writtenResponse = new MockHttpServletResponse();
+        decoratorFilter.doFilter(new MockHttpServletRequest("GET", "/info"), writtenResponse, chain);
+        MockHttpServletResponse cachedResponse = new MockHttpServletResponse();
+        decoratorFilter.doFilter(new MockHttpServletRequest("GET", "/info"), cachedResponse, chain);
+
+        assertThat(writtenResponse.getHeader("Vary"), is("Accept-Encoding"));
+        assertThat(cachedResponse.getHeader("Vary"), is("Accept-Encoding"));
+        assertThat(decoratorFilter.getOutputCacheHits(), is(1L));
+    }
+
+    @Test
+    public void preload_links_should_be_added_for_fragment_assets() throws IOException, ServletException {
+        withDefaultFilterChain();
+        withFragments("header", "footer");
+        when(contentRetriever.getPageContent(anyString())).thenReturn("<div id=\"header\"><link rel=\"stylesheet\" href=\"/felles.css\"></div>"
+                + "<div id=\"footer\"><script src=\"/felles.js\"></script></div>");
+        decoratorFilter.setShouldAddPreloadLinks(true);
+
+        decoratorFilter.doFilter(request, response, chain);
+
+        assertThat(response.getHeaders("Link"), is((List<Object>) new ArrayList<Object>(asList(
+                "</felles.css>; rel=preload; as=style", "</felles.js>; rel=preload; as=script"))));
+        assertThat(response.getContentAsString(), containsString("felles.css"));
+    }
+
+    @Test
+    public void timing_should_add_server_timing_header_with_measured_phases() throws IOException, ServletException {
+        withDefaultFilterChain();
+        withFragments("header", "footer");
+        decoratorFilter.setShouldAddServerTiming(true);
+
+        decoratorFilter.doFilter(request, response, chain);
+
+        String serverTiming = response.getHeader("Server-Timing");
+        assertThat(serverTiming, containsString("app;dur="));
+        assertThat(serverTiming, containsString("decode;dur="));
+        assertThat(serverTiming, containsString("url;dur="));
+        assertThat(serverTiming, containsString(";desc=miss"));
+        assertThat(serverTiming, containsString("merge;dur="));
+        assertThat(response.getContentAsString(), is("<html><body><nav></nav><footer></footer></body></html>"));
+    }
+
+    @Test
+    public void timing_should_give_each_request_to_listeners_and_histograms() throws IOException, ServletException {
+        withDefaultFilterChain();
+        withFragments("header", "footer");
+        List<DecorationTimings> timed = new ArrayList<>();
+        decoratorFilter.addDecorationTimingListener(timed::add);
+        decoratorFilter.setShouldTimeDecoration(true);
+
+        decoratorFilter.doFilter(request, response, chain);
+        decoratorFilter.doFilter(new MockHttpServletRequest(), new MockHttpServletResponse(), chain);
+
+        assertThat(timed.size(), is(2));
+        assertThat(timed.get(0).getFetchResult(), is(DecorationTimings.FetchResult.MISS));
+        assertThat(timed.get(1).getFetchResult(), is(DecorationTimings.FetchResult.HIT));
+        assertThat(timed.get(1).isMeasured(DecorationPhase.WRITE), is(true));
+        assertThat(response.getHeader("Server-Timing"), is((Object) null));
+        DecorationTimingHistograms histograms = decoratorFilter.getDecorationTimingHistograms();
+        assertThat(histograms.getCount(DecorationPhase.TOTAL), is(2L));
+        assertThat(histograms.getCount(DecorationPhase.FETCH), is(2L));
+        assertThat(histograms.getFetchResultCount(DecorationTimings.FetchResult.HIT), is(1L));
+        assertThat(histograms.getPercentileMillis(DecorationPhase.TOTAL, 100) >= histograms.getPercentileMillis(DecorationPhase.MERGE, 100), is(true));
+    }
+
     @Test
     public void appends_options_to_url() throws IOException, ServletException {
         withDefaultFilterChain();
@@ -462,6 +1050,111 @@ public class DecoratorFilterTest {
         verify(contentRetriever).getPageContent("http://nav.no/fragments?appname=arbeid&header=true&footer=true&banner=banner-name");
     }
 
+    @Test
+    public void streaming_should_replace_placeholders_in_head_and_body() throws IOException, ServletException {
+        chain = (servletRequest, servletResponse) -> {
+            servletResponse.setContentType("text/html");
+            servletResponse.getWriter().write("<html><head><title>Tittel</title>{{fragment.resources-head}}</head><body>{{fragment.header}}<h1>{{fragment.title}}</h1>{{fragment.footer}}</body></html>");
+        };
+        withFragments("resources-head", "header", "footer");
+        decoratorFilter.setStreamingDecoration(true);
+        when(contentRetriever.getPageContent(anyString())).thenReturn("<div id=\"resources-head\"><link href=\"main.css\" /></div><div id=\"header\"><nav></nav></div><div id=\"footer\"><footer></footer></div>");
+
+        decoratorFilter.doFilter(request, response, chain);
+
+        assertThat(response.getContentAsString(), is("<html><head><title>Tittel</title><link href=\"main.css\" /></head><body><nav></nav><h1>Tittel</h1><footer></footer></body></html>"));
+        assertThat(request.getAttribute(ALREADY_DECORATED_HEADER), is((Object) Boolean.TRUE));
+    }
+
+    @Test
+    public void streaming_should_send_head_and_header_before_application_is_done() throws IOException, ServletException {
+        final List<String> writtenBeforeDone = new ArrayList<>();
+        chain = (servletRequest, servletResponse) -> {
+            servletResponse.setContentType("text/html");
+            servletResponse.getWriter().write("<html><head></head><body>{{fragment.header}}");
+            servletResponse.flushBuffer();
+            writtenBeforeDone.add(response.getContentAsString());
+            servletResponse.getWriter().write("<p>innhold</p>{{fragment.footer}}</body></html>");
+        };
+        withFragments("header", "footer");
+        decoratorFilter.setStreamingDecoration(true);
+
+        decoratorFilter.doFilter(request, response, chain);
+
+        assertThat(writtenBeforeDone.get(0), is("<html><head></head><body><nav></nav>"));
+        assertThat(response.getContentAsString(), is("<html><head></head><body><nav></nav><p>innhold</p><footer></footer></body></html>"));
+    }
+
+    @Test
+    public void streaming_should_send_head_written_with_writer_without_flush() throws IOException, ServletException {
+        final List<String> writtenBeforeDone = new ArrayList<>();
+        chain = (servletRequest, servletResponse) -> {
+            servletResponse.setContentType("text/html");
+            servletResponse.getWriter().write("<html><head></head><body>{{fragment.header}}");
+            writtenBeforeDone.add(response.getContentAsString());
+            servletResponse.getWriter().write("<p>innhold</p>{{fragment.footer}}</body></html>");
+        };
+        withFragments("header", "footer");
+        decoratorFilter.setStreamingDecoration(true);
+
+        decoratorFilter.doFilter(request, response, chain);
+
+        assertThat(writtenBeforeDone.get(0), is("<html><head></head><body><nav></nav>"));
+        assertThat(response.getContentAsString(), is("<html><head></head><body><nav></nav><p>innhold</p><footer></footer></body></html>"));
+    }
+
+    @Test
+    public void streaming_should_handle_placeholders_split_between_writes() throws IOException, ServletException {
+        chain = (servletRequest, servletResponse) -> {
+            servletResponse.setContentType("text/html");
+            servletResponse.getOutputStream().write("<html><body>{".getBytes());
+            servletResponse.getOutputStream().write("{fragment.hea".getBytes());
+            servletResponse.getOutputStream().write("der}}{{ikke.fragment}}{{fragment.footer}".getBytes());
+            servletResponse.getOutputStream().write("}</body></html>".getBytes());
+        };
+        withFragments("header", "footer");
+        decoratorFilter.setStreamingDecoration(true);
+
+        decoratorFilter.doFilter(request, response, chain);
+
+        assertThat(response.getContentAsString(), is("<html><body><nav></nav>{{ikke.fragment}}<footer></footer></body></html>"));
+    }
+
+    @Test
+    public void streaming_should_fall_back_to_buffered_decoration_when_submenu_should_be_removed() throws IOException, ServletException {
+        chain = (servletRequest, servletResponse) -> {
+            servletResponse.setContentType("text/html");
+            servletResponse.getWriter().write("<html><body><main id=\"maincontent\"><div class=\"row\"><div class=\"col-md-4\">{{fragment.submenu}}</div><div class=\"col-md-8\"></div></div></main></body></html>");
+        };
+        withFragments("submenu");
+        decoratorFilter.setStreamingDecoration(true);
+        decoratorFilter.setSubMenuPath("path/to/menu");
+        decoratorFilter.setNoSubmenuPatterns(asList(".*selftest.*"));
+        request.setRequestURI("/internal/selftest");
+        when(contentRetriever.getPageContent(anyString())).thenReturn("<div id=\"submenu\"></div>");
+
+        decoratorFilter.doFilter(request, response, chain);
+
+        assertThat(response.getContentAsString(), not(containsString("<div class=\"col-md-4\"></div>")));
+        assertThat(response.getContentAsString(), containsString("<div class=\"col-md-12\"></div>"));
+    }
+
+    @Test
+    public void streaming_should_pass_through_response_with_other_content_type() throws IOException, ServletException {
+        final String json = "{\"header\": \"<body>{{fragment.header}}\"}";
+        chain = (servletRequest, servletResponse) -> {
+            servletResponse.setContentType("application/json");
+            servletResponse.getWriter().write(json);
+        };
+        withFragments("header", "footer");
+        decoratorFilter.setStreamingDecoration(true);
+
+        decoratorFilter.doFilter(request, response, chain);
+
+        assertThat(response.getContentAsString(), is(json));
+        verify(contentRetriever, times(0)).getPageContent(anyString());
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void throwsWhenArgumentsAreMissing(){
         List<String> fragmentNames = asList("header", "footer");
@@ -0,0 +1,122 @@
+package no.nav.innholdshenter.filter;
+
+import org.jsoup.Jsoup;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Collections;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNot.not;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.hamcrest.core.IsSame.sameInstance;
+import static org.hamcrest.core.StringContains.containsString;
+import static org.junit.Assert.assertThat;
+
+public class FragmentCacheTest {
+
+    private static final List<String> FRAGMENT_NAMES = asList("header", "footer");
+    private static final String PAGE = "<html><body><div id=\"header\"><nav>meny</nav></div></body></html>";
+
+    @Test
+    public void shouldSplitPageIntoFragmentsOnce() {
+        FragmentCache fragmentCache = new FragmentCache();
+
+        HtmlFragments fragments = fragmentCache.getFragments("http://enonic/fragments", PAGE, FRAGMENT_NAMES);
+
+        assertThat(fragments.get("header"), containsString("meny"));
+        assertThat(fragments.get("footer"), is(nullValue()));
+        assertThat(fragmentCache.getFragments("http://enonic/fragments", new String(PAGE), FRAGMENT_NAMES), sameInstance(fragments));
+    }
+
+    @Test
+    public void shouldCreateNewVersionWhenContentChanges() {
+        FragmentCache fragmentCache = new FragmentCache();
+        HtmlFragments fragments = fragmentCache.getFragments("http://enonic/fragments", PAGE, FRAGMENT_NAMES);
+
+        HtmlFragments changed = fragmentCache.getFragments("http://enonic/fragments", PAGE.replace("meny", "ny meny"), FRAGMENT_NAMES);
+
+        assertThat(changed.get("header"), containsString("ny meny"));
+        assertThat(changed.getVersion(), not(fragments.getVersion()));
+    }
+
+    @Test
+    public void shouldExtractPreloadLinksForAssetsInFragments() {
+        FragmentCache fragmentCache = new FragmentCache();
+        String page = "<html><head><link rel=\"stylesheet\" href=\"/utenfor.css\"></head><body>"
+                + "<div id=\"header\"><link rel=\"stylesheet\" href=\"/felles.css\"><script src=\"/felles.js\"></script></div>"
+                + "<div id=\"footer\"><script src=\"/felles.js\"></script><script>inline();</script></div></body></html>";
+
+        HtmlFragments fragments = fragmentCache.getFragments("http://enonic/fragments", page, FRAGMENT_NAMES);
+
+        assertThat(fragments.getPreloadLinks(), is(asList("</felles.css>; rel=preload; as=style", "</felles.js>; rel=preload; as=script")));
+    }
+
+    @Test
+    public void shouldReuseEncodedFragmentsMarkedWithSameActiveItem() throws UnsupportedEncodingException {
+        FragmentCache fragmentCache = new FragmentCache();
+        String page = "<html><body><div id=\"header\"><a href=\"/side\">Side</a><a href=\"/annen\">Annen</a></div></body></html>";
+
+        HtmlFragments forste = fragmentCache.getFragments("http://enonic/fragments", page, FRAGMENT_NAMES).withActiveItem("/side");
+        HtmlFragments andre = fragmentCache.getFragments("http://enonic/fragments", page, FRAGMENT_NAMES).withActiveItem("/side");
+        HtmlFragments annen = fragmentCache.getFragments("http://enonic/fragments", page, FRAGMENT_NAMES).withActiveItem("/annen");
+
+        assertThat(andre.getEncoded("UTF-8"), sameInstance(forste.getEncoded("UTF-8")));
+        assertThat(annen.getEncoded("UTF-8"), not(sameInstance(forste.getEncoded("UTF-8"))));
+        assertThat(forste.get("header"), containsString("class=\"active\" href=\"/side\""));
+    }
+
+    @Test
+    public void shouldShareEncodedFragmentsWithoutActiveItemWithUnmarkedFragments() throws UnsupportedEncodingException {
+        FragmentCache fragmentCache = new FragmentCache();
+        String page = "<html><body><div id=\"header\"><a href=\"/side\">Side</a></div><div id=\"footer\"><a href=\"/om\">Om</a></div></body></html>";
+        HtmlFragments fragments = fragmentCache.getFragments("http://enonic/fragments", page, FRAGMENT_NAMES);
+
+        HtmlFragments marked = fragments.withActiveItem("/side");
+
+        assertThat(marked.getEncoded("UTF-8").get("footer"), sameInstance(fragments.getEncoded("UTF-8").get("footer")));
+        assertThat(marked.getEncoded("UTF-8").get("header"), not(sameInstance(fragments.getEncoded("UTF-8").get("header"))));
+    }
+
+    @Test
+    public void shouldKeepOnlyConfiguredNumberOfActiveItemVariants() {
+        FragmentCache fragmentCache = new FragmentCache();
+        fragmentCache.setMaxActiveItems(1);
+        String page = "<html><body><div id=\"header\"><a href=\"/side\">Side</a><a href=\"/annen\">Annen</a></div></body></html>";
+        HtmlFragments fragments = fragmentCache.getFragments("http://enonic/fragments", page, FRAGMENT_NAMES);
+
+        HtmlFragments side = fragments.withActiveItem("/side");
+        fragments.withActiveItem("/annen");
+
+        assertThat(fragments.withActiveItem("/side"), not(sameInstance(side)));
+        assertThat(fragments.withActiveItem("/side"), sameInstance(fragments.withActiveItem("/side")));
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedUrl() {
+        FragmentCache fragmentCache = new FragmentCache(2);
+        HtmlFragments first = fragmentCache.getFragments("http://enonic/1", PAGE, FRAGMENT_NAMES);
+        fragmentCache.getFragments("http://enonic/2", PAGE, FRAGMENT_NAMES);
+        fragmentCache.getFragments("http://enonic/1", PAGE, FRAGMENT_NAMES);
+        fragmentCache.getFragments("http://enonic/3", PAGE, FRAGMENT_NAMES);
+
+        assertThat(fragmentCache.size(), is(2));
+        assertThat(fragmentCache.getFragments("http://enonic/1", PAGE, FRAGMENT_NAMES), sameInstance(first));
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void shouldMergeWithParsedDocumentThroughDeprecatedConstructor() {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        String page = "<html><body>{{fragment.header}}</body></html>";
+
+        MarkupMerger markupMerger = new MarkupMerger(FRAGMENT_NAMES, Collections.<String>emptyList(), page, Jsoup.parse(PAGE), request, "arbeid");
+
+        String merged = markupMerger.merge();
+        assertThat(merged, containsString("meny"));
+        assertThat(merged, not(containsString("{{fragment.header}}")));
+    }
+}
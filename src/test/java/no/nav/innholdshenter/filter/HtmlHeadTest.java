@@ -0,0 +1,40 @@
+package no.nav.innholdshenter.filter;
+
+import org.junit.Test;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class HtmlHeadTest {
+
+    @Test
+    public void shouldReadMetaTagsAndTitleFromHead() {
+        HtmlHead head = HtmlHead.scan("<!DOCTYPE html><html><head><META NAME='Brukerstatus' content=\"niva4\">"
+                + "<meta name=hodeFotKey content=/sbl/side><title>\n  Min &amp; side\n</title></head><body></body></html>");
+
+        assertThat(head.getMetaTag("brukerstatus"), is("niva4"));
+        assertThat(head.getMetaTag("hodeFotKey"), is("/sbl/side"));
+        assertThat(head.getTitle(), is("Min & side"));
+    }
+
+    @Test
+    public void shouldUseFirstMetaTagWithSameName() {
+        HtmlHead head = HtmlHead.scan("<meta name=\"hodeFotKey\" content=\"/forste\"><meta name=\"hodeFotKey\" content=\"/andre\">");
+
+        assertThat(head.getMetaTag("hodeFotKey"), is("/forste"));
+        assertThat(head.getTitle(), is(""));
+    }
+
+    @Test
+    public void shouldStopAtEndOfHeadAndSkipCommentsAndScripts() {
+        HtmlHead head = HtmlHead.scan("<html><head><!-- <meta name=\"a\" content=\"kommentar\"> -->"
+                + "<script>var s = '<meta name=\"b\" content=\"script\">';</script></head>"
+                + "<body><meta name=\"c\" content=\"body\"><title>Ikke tittel</title></body></html>");
+
+        assertThat(head.getMetaTag("a"), is(nullValue()));
+        assertThat(head.getMetaTag("b"), is(nullValue()));
+        assertThat(head.getMetaTag("c"), is(nullValue()));
+        assertThat(head.getTitle(), is(""));
+    }
+}
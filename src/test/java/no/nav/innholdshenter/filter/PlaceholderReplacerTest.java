@@ -0,0 +1,40 @@
+package no.nav.innholdshenter.filter;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class PlaceholderReplacerTest {
+
+    @Test
+    public void shouldReplaceAllKnownPlaceholders() {
+        Map<String, String> replacements = new HashMap<>();
+        replacements.put("fragment.header", "<nav></nav>");
+        replacements.put("applicationName", "arbeid");
+
+        String result = PlaceholderReplacer.replace("<body>{{fragment.header}}<h1>{{applicationName}}</h1>{{fragment.header}}</body>", replacements);
+
+        assertThat(result, is("<body><nav></nav><h1>arbeid</h1><nav></nav></body>"));
+    }
+
+    @Test
+    public void shouldLeaveUnknownPlaceholdersAndBracesAsIs() {
+        Map<String, String> replacements = new HashMap<>();
+        replacements.put("fragment.footer", "<footer></footer>");
+
+        String markup = "<script>if (a) {{b: 1}}</script>{{fragment.ukjent}}{{{fragment.footer}}{{ikke lukket";
+
+        assertThat(PlaceholderReplacer.replace(markup, replacements),
+                is("<script>if (a) {{b: 1}}</script>{{fragment.ukjent}}{<footer></footer>{{ikke lukket"));
+    }
+
+    @Test
+    public void shouldHandleMarkupWithoutPlaceholders() {
+        assertThat(PlaceholderReplacer.replace("<html></html>", new HashMap<>()), is("<html></html>"));
+        assertThat(PlaceholderReplacer.replace("", new HashMap<>()), is(""));
+    }
+}
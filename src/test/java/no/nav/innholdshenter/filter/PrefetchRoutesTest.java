@@ -0,0 +1,49 @@
+package no.nav.innholdshenter.filter;
+
+import org.junit.Test;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class PrefetchRoutesTest {
+
+    @Test
+    public void shouldStopPrefetchingRouteAfterRepeatedMisses() {
+        PrefetchRoutes prefetchRoutes = new PrefetchRoutes();
+        for (int i = 0; i < PrefetchRoutes.MAX_MISSES; i++) {
+            assertThat(prefetchRoutes.shouldPrefetch("/meldekort"), is(true));
+            prefetchRoutes.miss("/meldekort");
+        }
+
+        assertThat(prefetchRoutes.shouldPrefetch("/meldekort"), is(false));
+        assertThat(prefetchRoutes.shouldPrefetch("/annen"), is(true));
+    }
+
+    @Test
+    public void shouldRetryRouteAndStartAgainWhenItHits() {
+        PrefetchRoutes prefetchRoutes = new PrefetchRoutes();
+        for (int i = 0; i < PrefetchRoutes.MAX_MISSES; i++) {
+            prefetchRoutes.miss("/meldekort");
+        }
+
+        int prefetched = 0;
+        for (int i = 0; i < PrefetchRoutes.RETRY_INTERVAL; i++) {
+            prefetched += prefetchRoutes.shouldPrefetch("/meldekort") ? 1 : 0;
+        }
+        prefetchRoutes.hit("/meldekort");
+
+        assertThat(prefetched, is(1));
+        assertThat(prefetchRoutes.shouldPrefetch("/meldekort"), is(true));
+    }
+
+    @Test
+    public void shouldCountOnlyMissesInARow() {
+        PrefetchRoutes prefetchRoutes = new PrefetchRoutes();
+        for (int i = 0; i < PrefetchRoutes.MAX_MISSES; i++) {
+            prefetchRoutes.miss("/meldekort");
+            prefetchRoutes.hit("/meldekort");
+        }
+
+        assertThat(prefetchRoutes.shouldPrefetch("/meldekort"), is(true));
+    }
+}
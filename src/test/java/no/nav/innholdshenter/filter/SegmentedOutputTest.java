@@ -0,0 +1,89 @@
+package no.nav.innholdshenter.filter;
+
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class SegmentedOutputTest {
+
+    @Test
+    public void shouldWriteSameBytesAsMergedStringWithFragmentsEncodedOnce() throws IOException {
+        Map<String, String> markup = new HashMap<>();
+        markup.put("header", "<header>{{applicationName}} – {{fragment.title}} {{fragment.ukjent}}</header>");
+        markup.put("footer", "<footer>Blåbærsyltetøy</footer>");
+        HtmlFragments htmlFragments = new HtmlFragments(markup, 1);
+        List<String> fragmentNames = Arrays.asList("header", "footer", "submenu");
+        String page = "<html><head><title>Søk &amp; finn</title></head><body>{{fragment.header}}æøå{{fragment.submenu}}"
+                + "{{fragment.footer}}{{applicationName}}{{ukjent}}</body></html>";
+        MarkupMerger markupMerger = new MarkupMerger(fragmentNames, Collections.<String>emptyList(), htmlFragments,
+                new DecoratorRequestContext(new MockHttpServletRequest("GET", "/side"), page), "Min side");
+
+        SegmentedOutput output = new SegmentedOutput("UTF-8");
+        markupMerger.mergeTo(output);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        output.writeTo(out);
+
+        byte[] expected = markupMerger.merge().getBytes("UTF-8");
+        assertArrayEquals(expected, out.toByteArray());
+        assertEquals(expected.length, output.size());
+        assertSame(htmlFragments.getEncoded("UTF-8"), htmlFragments.getEncoded("UTF-8"));
+        output.release();
+    }
+
+    @Test
+    public void shouldWriteTextAcrossChunksAndSharedBytesInOrder() throws IOException {
+        SegmentedOutput output = new SegmentedOutput("UTF-8");
+        StringBuilder longText = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            longText.append("ø");
+        }
+        output.appendText(longText.toString());
+        output.appendBytes("|delt|".getBytes("UTF-8"));
+        output.appendText("slutt");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        output.writeTo(out);
+        output.release();
+
+        assertEquals(longText + "|delt|slutt", new String(out.toByteArray(), "UTF-8"));
+    }
+
+    @Test
+    public void shouldGzipSharedAndOwnSegmentsToSameBytesAsWritten() throws IOException {
+        SharedSegment shared = new SharedSegment("<header>delt, og delt igjen, og delt</header>".getBytes("UTF-8"));
+        SegmentedOutput output = new SegmentedOutput("UTF-8");
+        output.appendText("<html><body>");
+        output.appendShared(shared);
+        output.appendText("<main>æøå, og delt igjen</main>");
+        output.appendShared(shared);
+        output.appendText("</body></html>");
+
+        SegmentedOutput gzip = output.gzip();
+        byte[] plain = output.toByteArray();
+        byte[] compressed = gzip.toByteArray();
+        output.release();
+        gzip.release();
+
+        GZIPInputStream unzipped = new GZIPInputStream(new ByteArrayInputStream(compressed));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64];
+        for (int count = unzipped.read(buffer); count != -1; count = unzipped.read(buffer)) {
+            out.write(buffer, 0, count);
+        }
+        assertArrayEquals(plain, out.toByteArray());
+        assertSame(shared.getDeflated(), shared.getDeflated());
+    }
+}
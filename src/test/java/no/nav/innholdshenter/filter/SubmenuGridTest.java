@@ -0,0 +1,49 @@
+package no.nav.innholdshenter.filter;
+
+import org.junit.Test;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class SubmenuGridTest {
+
+    @Test
+    public void shouldRemoveSubmenuColumnAndLeaveRestOfMarkupAsWritten() {
+        String page = "<html><body>\n  <MAIN id=maincontent>\n    <div class=\"container\"><div class='row'>\n"
+                + "      <div class=\"col-md-4\"><nav>{{fragment.submenu}}<br><img src=\"/meny.png\"/><div></div></nav><script>if (a<b) document.write('</div>');</script></div>\n"
+                + "      <!-- <div>kommentar</div> --><section class=\"col-md-8 innhold\"><P>Tekst</section>\n"
+                + "    </div></div>\n  </MAIN>\n</body></html>";
+
+        String expected = "<html><body>\n  <MAIN id=maincontent>\n    <div class=\"container\"><div class='row'>\n"
+                + "      \n"
+                + "      <!-- <div>kommentar</div> --><section class=\"innhold col-md-12\"><P>Tekst</section>\n"
+                + "    </div></div>\n  </MAIN>\n</body></html>";
+        assertThat(SubmenuGrid.removeSubmenu(page), is(expected));
+    }
+
+    @Test
+    public void shouldReturnNullWhenPageHasNoGrid() {
+        assertThat(SubmenuGrid.removeSubmenu("<html><body><main id=\"maincontent\"><p>Tekst</p></main></body></html>"), is(nullValue()));
+        assertThat(SubmenuGrid.removeSubmenu("<html><body>{{fragment.submenu}}</body></html>"), is(nullValue()));
+    }
+
+    @Test
+    public void shouldCloseElementsWithOmittedEndTagsInSubmenuColumn() {
+        String page = "<main id=\"maincontent\"><div class=\"row\">"
+                + "<div class=\"col-md-3\"><p>x<ul><li>a<li>b</ul></div><div class=\"col-md-9\">Innhold</div>"
+                + "</div></main><div class=\"annet\"></div>";
+
+        assertThat(SubmenuGrid.removeSubmenu(page),
+                is("<main id=\"maincontent\"><div class=\"row\"><div class=\"col-md-12\">Innhold</div></div></main><div class=\"annet\"></div>"));
+    }
+
+    @Test
+    public void shouldReturnNullWhenEndTagDoesNotMatchOpenElements() {
+        String page = "<main id=\"maincontent\"><div class=\"row\">"
+                + "<div class=\"col-md-3\"><span>x</em></div><div class=\"col-md-9\">Innhold</div>"
+                + "</div></main><div class=\"annet\"></div>";
+
+        assertThat(SubmenuGrid.removeSubmenu(page), is(nullValue()));
+    }
+}
@@ -1,6 +1,7 @@
 package no.nav.innholdshenter.hjelpetekst;
 
 import no.nav.innholdshenter.common.ContentRetriever;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -8,12 +9,18 @@ import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
 import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
 
 import static java.util.Arrays.asList;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -36,6 +43,11 @@ public class EnonicHtmlInnholdBeanTest {
         htmlInnholdBean = new EnonicHtmlInnholdBean(ecRetriever, "path");
     }
 
+    @After
+    public void tearDown() {
+        htmlInnholdBean.destroy();
+    }
+
     @Test
     public void henterListeMedHjelpetekster() {
         when(ecRetriever.getPageContent("path")).thenReturn("<innholdsliste><htmlinnhold key=\"key.a\" title=\"Tittel A\"/><htmlinnhold key=\"key.b\" title=\"Tittel B\"/></innholdsliste>");
@@ -47,6 +59,14 @@ public class EnonicHtmlInnholdBeanTest {
         assertThat(hjelpetekster.get(1).getTitle(), is("Tittel B"));
     }
 
+    @Test
+    public void hopperOverAndreElementerIInnholdslisten() {
+        when(ecRetriever.getPageContent("path")).thenReturn("<innholdsliste><annet><htmlinnhold key=\"key.x\"/></annet><htmlinnhold key=\"key.a\" title=\"Tittel A\"><html><p/></html></htmlinnhold></innholdsliste>");
+        List<HtmlInnhold> hjelpetekster = htmlInnholdBean.getHjelpetekster();
+        assertThat(hjelpetekster.size(), is(1));
+        assertThat(hjelpetekster.get(0).getKey(), is("key.a"));
+    }
+
     @Test
     public void henterEnEnkeltHjelpetekst() {
         when(ecRetriever.getPageContent("path?key=key.a")).thenReturn("<htmlinnhold><title>Tittel</title><html><p><strong>asdfasdf</strong></p></html></htmlinnhold>");
@@ -55,6 +75,22 @@ public class EnonicHtmlInnholdBeanTest {
         assertThat(htmlInnhold.getHtml(), is("<p><strong>asdfasdf</strong></p>"));
     }
 
+    @Test
+    public void henterTittelSomStaarEtterHtml() {
+        when(ecRetriever.getPageContent("path?key=key.a")).thenReturn("<htmlinnhold><html><p>a</p></html><title>Tittel</title></htmlinnhold>");
+        HtmlInnhold htmlInnhold = htmlInnholdBean.getHjelpetekst("key.a");
+        assertThat(htmlInnhold.getTitle(), is("Tittel"));
+        assertThat(htmlInnhold.getHtml(), is("<p>a</p>"));
+    }
+
+    @Test
+    public void henterTittelSomStaarEtterHtmlMedMellomrom() {
+        when(ecRetriever.getPageContent("path?key=key.a")).thenReturn("<htmlinnhold>\n  <html><p>a</p></html>\n  <annet/>\n  <title>Tittel</title>\n</htmlinnhold>");
+        HtmlInnhold htmlInnhold = htmlInnholdBean.getHjelpetekst("key.a");
+        assertThat(htmlInnhold.getTitle(), is("Tittel"));
+        assertThat(htmlInnhold.getHtml(), is("<p>a</p>"));
+    }
+
     @Test
     public void kallerHjelpetekstListener() {
         HtmlInnhold htmlInnhold = new HtmlInnhold();
@@ -67,4 +103,127 @@ public class EnonicHtmlInnholdBeanTest {
         verify(listener).onHtmlInnholdRetrieved(any(HtmlInnhold.class));
         assertEquals(res, htmlInnhold);
     }
+
+    @Test
+    public void gjenbrukerProsessertHjelpetekstNaarInnholdetErUendret() {
+        when(ecRetriever.getPageContent("path?key=key.a")).thenReturn("<htmlinnhold><title>Tittel</title><html><p>a</p></html></htmlinnhold>");
+        htmlInnholdBean.setHtmlInnholdListeners(asList(listener));
+        when(listener.onHtmlInnholdRetrieved(any(HtmlInnhold.class))).then(invocation -> invocation.getArguments()[0]);
+
+        HtmlInnhold forste = htmlInnholdBean.getHjelpetekst("key.a");
+        HtmlInnhold andre = htmlInnholdBean.getHjelpetekst("key.a");
+
+        assertThat(andre, is(sameInstance(forste)));
+        verify(listener, times(1)).onHtmlInnholdRetrieved(any(HtmlInnhold.class));
+    }
+
+    @Test
+    public void prosessererHjelpetekstPaaNyttNaarInnholdetErEndret() {
+        when(ecRetriever.getPageContent("path?key=key.a"))
+                .thenReturn("<htmlinnhold><title>Tittel</title><html><p>a</p></html></htmlinnhold>")
+                .thenReturn("<htmlinnhold><title>Ny tittel</title><html><p>b</p></html></htmlinnhold>");
+
+        HtmlInnhold forste = htmlInnholdBean.getHjelpetekst("key.a");
+        HtmlInnhold andre = htmlInnholdBean.getHjelpetekst("key.a");
+
+        assertThat(andre, is(not(sameInstance(forste))));
+        assertThat(andre.getTitle(), is("Ny tittel"));
+        assertThat(andre.getHtml(), is("<p>b</p>"));
+    }
+
+    @Test
+    public void lasterAlleHjelpeteksterIInnholdslistenTilIndeks() {
+        mockInnholdsliste();
+
+        Map<String, HtmlInnhold> indeks = htmlInnholdBean.getHjelpetekstIndeks();
+
+        assertThat(indeks.keySet(), contains("key.a", "key.b"));
+        assertThat(indeks.get("key.a").getHtml(), is("<p>a</p>"));
+        assertThat(indeks.get("key.b").getTitle(), is("Tittel B"));
+    }
+
+    @Test
+    public void henterHjelpetekstFraIndeksUtenNyttKall() {
+        mockInnholdsliste();
+        htmlInnholdBean.setBrukIndeks(true);
+        htmlInnholdBean.getHjelpetekstIndeks();
+
+        HtmlInnhold htmlInnhold = htmlInnholdBean.getHjelpetekst("key.b");
+
+        assertThat(htmlInnhold.getHtml(), is("<p>b</p>"));
+        verify(ecRetriever, times(1)).getPageContent("path?key=key.b");
+    }
+
+    @Test
+    public void beholderForrigeHjelpetekstNaarHentingFeilerVedRefresh() {
+        mockInnholdsliste();
+        htmlInnholdBean.getHjelpetekstIndeks();
+        when(ecRetriever.getPageContent("path?key=key.a")).thenThrow(new RuntimeException("Enonic er nede"));
+
+        htmlInnholdBean.refreshHjelpetekstIndeks();
+
+        assertThat(htmlInnholdBean.getHjelpetekstIndeks().get("key.a").getHtml(), is("<p>a</p>"));
+        verify(ecRetriever, times(2)).getPageContent("path?key=key.b");
+    }
+
+    @Test
+    public void byggerIndeksenPaaNyttIBakgrunnenNaarInnholdslistenEndres() throws InterruptedException {
+        mockInnholdsliste();
+        htmlInnholdBean.getHjelpetekstIndeks();
+        when(ecRetriever.getPageContent("path")).thenReturn("<innholdsliste><htmlinnhold key=\"key.b\" title=\"Tittel B\"/></innholdsliste>");
+
+        assertThat(htmlInnholdBean.getHjelpetekstIndeks().keySet(), contains("key.a", "key.b"));
+        assertThat(ventPaaIndeks(indeks -> !indeks.containsKey("key.a")).keySet(), contains("key.b"));
+    }
+
+    @Test
+    public void faarMedHjelpetekstSomErPublisertPaaNytt() throws InterruptedException {
+        mockInnholdsliste();
+        htmlInnholdBean.setIndeksRefreshMillis(10);
+        htmlInnholdBean.setBrukIndeks(true);
+        htmlInnholdBean.getHjelpetekst("key.a");
+        when(ecRetriever.getPageContent("path?key=key.a")).thenReturn("<htmlinnhold><title>Tittel A</title><html><p>ny</p></html></htmlinnhold>");
+
+        ventPaaIndeks(indeks -> "<p>ny</p>".equals(indeks.get("key.a").getHtml()));
+        assertThat(htmlInnholdBean.getHjelpetekst("key.a").getHtml(), is("<p>ny</p>"));
+    }
+
+    @Test
+    public void henterEnkeltvisNaarInnholdslistenIkkeKanHentes() {
+        mockInnholdsliste();
+        when(ecRetriever.getPageContent("path")).thenThrow(new RuntimeException("Enonic er nede"));
+        htmlInnholdBean.setBrukIndeks(true);
+
+        assertThat(htmlInnholdBean.getHjelpetekstIndeks().isEmpty(), is(true));
+        assertThat(htmlInnholdBean.getHjelpetekst("key.a").getHtml(), is("<p>a</p>"));
+        assertThat(htmlInnholdBean.getHjelpetekst("key.b").getHtml(), is("<p>b</p>"));
+    }
+
+    @Test
+    public void utelaterHjelpeteksterUtenInnholdFraIndeksen() {
+        mockInnholdsliste();
+        when(ecRetriever.getPageContent("path?key=key.a")).thenReturn("<annet/>");
+        htmlInnholdBean.setBrukIndeks(true);
+
+        assertThat(htmlInnholdBean.getHjelpetekstIndeks().keySet(), contains("key.b"));
+        when(ecRetriever.getPageContent("path?key=key.a")).thenReturn("<htmlinnhold><title>Tittel A</title><html><p>a</p></html></htmlinnhold>");
+        assertThat(htmlInnholdBean.getHjelpetekst("key.a").getHtml(), is("<p>a</p>"));
+    }
+
+    private Map<String, HtmlInnhold> ventPaaIndeks(Predicate<Map<String, HtmlInnhold>> betingelse) throws InterruptedException {
+        long frist = System.currentTimeMillis() + 5000;
+        Map<String, HtmlInnhold> indeks = htmlInnholdBean.getHjelpetekstIndeks();
+        while (!betingelse.test(indeks) && System.currentTimeMillis() < frist) {
+            Thread.sleep(10);
+            indeks = htmlInnholdBean.getHjelpetekstIndeks();
+        }
+        assertThat(betingelse.test(indeks), is(true));
+        return indeks;
+    }
+
+    private void mockInnholdsliste() {
+        when(ecRetriever.getPageContent("path")).thenReturn("<innholdsliste><htmlinnhold key=\"key.a\" title=\"Tittel A\"/><htmlinnhold key=\"key.b\" title=\"Tittel B\"/></innholdsliste>");
+        when(ecRetriever.getPageContent("path?key=key.a")).thenReturn("<htmlinnhold><title>Tittel A</title><html><p>a</p></html></htmlinnhold>");
+        when(ecRetriever.getPageContent("path?key=key.b")).thenReturn("<htmlinnhold><title>Tittel B</title><html><p>b</p></html></htmlinnhold>");
+    }
 }
@@ -0,0 +1,85 @@
+package no.nav.innholdshenter.message;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tester for {@link CompactBundles}
+ */
+public class CompactBundlesTest {
+
+    private Map<String, Properties> bundles;
+
+    @Before
+    public void setUp() {
+        Properties norsk = new Properties();
+        norsk.setProperty("kontaktinfo.overskrifter.spraak", "Språk");
+        norsk.setProperty("kontaktinfo.overskrifter.land", "Land");
+        norsk.setProperty("kontaktinfo.overskrifter.maalform", "Ønsket målform");
+
+        Properties engelsk = new Properties();
+        engelsk.setProperty("kontaktinfo.overskrifter.spraak", "Language");
+        engelsk.setProperty("kontaktinfo.overskrifter.land", "Land");
+
+        Properties ingenData = new Properties();
+        ingenData.setProperty("kontaktinfo.overskrifter.spraak", "Språk");
+        ingenData.setProperty("kontaktinfo.overskrifter.land", "Land");
+        ingenData.setProperty("kontaktinfo.overskrifter.maalform", "Ønsket målform");
+
+        bundles = new LinkedHashMap<>();
+        bundles.put("no_NO", norsk);
+        bundles.put("en_GB", engelsk);
+        bundles.put("no_NO/ingendata", ingenData);
+    }
+
+    @Test
+    public void skalHenteVerdierPerBundle() {
+        CompactBundles compactBundles = new CompactBundles(bundles);
+
+        assertThat(compactBundles.getKeyCount(), is(3));
+        assertThat(compactBundles.getProperty("no_NO", "kontaktinfo.overskrifter.spraak"), is("Språk"));
+        assertThat(compactBundles.getProperty("en_GB", "kontaktinfo.overskrifter.spraak"), is("Language"));
+        assertThat(compactBundles.getProperty("en_GB", "kontaktinfo.overskrifter.maalform"), is(nullValue()));
+        assertThat(compactBundles.getProperty("en_GB", "finnes.ikke"), is(nullValue()));
+        assertThat(compactBundles.getProperty("finnes_ikke", "kontaktinfo.overskrifter.spraak"), is(nullValue()));
+    }
+
+    @Test
+    public void skalHenteVerdierLagretSomUtf8() {
+        CompactBundles compactBundles = new CompactBundles(bundles, true);
+
+        assertThat(compactBundles.getProperty("no_NO", "kontaktinfo.overskrifter.maalform"), is("Ønsket målform"));
+        assertThat(compactBundles.getProperty("en_GB", "kontaktinfo.overskrifter.land"), is("Land"));
+    }
+
+    @Test
+    public void skalIkkeTelleDelteVerdierFlereGanger() {
+        CompactBundles compactBundles = new CompactBundles(bundles);
+
+        assertThat(compactBundles.getHeapUsage("no_NO"), greaterThan(compactBundles.getHeapUsage("no_NO/ingendata")));
+        assertThat(compactBundles.getSharedKeysHeapUsage(), greaterThan(0L));
+    }
+
+    @Test
+    public void skalBrukeMindreMinneEnnProperties() {
+        CompactBundles compactBundles = new CompactBundles(bundles);
+
+        long propertiesHeapUsage = 0;
+        for (Properties properties : bundles.values()) {
+            propertiesHeapUsage += CompactBundles.estimateHeapUsage(properties);
+        }
+
+        assertThat(compactBundles.getTotalHeapUsage(), lessThan(propertiesHeapUsage));
+        assertThat(compactBundles.getHeapUsage("no_NO/ingendata"), lessThan(CompactBundles.estimateHeapUsage(bundles.get("no_NO/ingendata"))));
+    }
+}
@@ -34,6 +34,7 @@ public class EnonicStringRetrieverTest {
         PROPERTIES.setProperty("cv.kontaktdetaljer.kontaktinfo.land", "Land");
         PROPERTIES.setProperty("kontaktinfo.overskrifter.maalform", "Ønsket målform");
         PROPERTIES.setProperty("kontaktinfo.overskrifter.spraak", "Språk");
+        PROPERTIES.setProperty("kontaktinfo.antall", "Du har {0} meldinger fra {1}");
 
         PROPERTIES_EN.setProperty("kontaktinfo.overskrifter.spraak", "Language");
         PROPERTIES_INGEN.setProperty("kontaktinfo.overskrifter.spraak", "Ikke tilgjengelig");
@@ -96,4 +97,45 @@ public class EnonicStringRetrieverTest {
         assertEquals("Språk", retriever.retrieveString("kontaktinfo.overskrifter.spraak", "no_NO", null));
         assertEquals("Ikke tilgjengelig", retriever.retrieveString("kontaktinfo.overskrifter.spraak", "no_NO", "ingendata"));
     }
+
+    @Test
+    public void skalFormatereTekstMedArgumenter() {
+        EnonicStringRetriever retriever = new EnonicStringRetriever(contentRetriever, PATH);
+        assertEquals("Du har 3 meldinger fra NAV", retriever.retrieveFormatted("kontaktinfo.antall", "no_NO", 3, "NAV"));
+        assertEquals("Du har 4 meldinger fra NAV", retriever.retrieveFormatted("kontaktinfo.antall", "no_NO", 4, "NAV"));
+    }
+
+    @Test
+    public void skalBrukeNyMalNaarPropertiesErOppdatert() {
+        EnonicStringRetriever retriever = new EnonicStringRetriever(contentRetriever, PATH);
+        assertEquals("Du har 3 meldinger fra NAV", retriever.retrieveFormatted("kontaktinfo.antall", "no_NO", 3, "NAV"));
+
+        Properties oppdatert = new Properties();
+        oppdatert.setProperty("kontaktinfo.antall", "{1} har sendt deg {0} meldinger");
+        when(contentRetriever.getProperties(PATH + "?locale=no_NO&variant=")).thenReturn(oppdatert);
+
+        assertEquals("NAV har sendt deg 3 meldinger", retriever.retrieveFormatted("kontaktinfo.antall", "no_NO", 3, "NAV"));
+    }
+
+    @Test
+    public void skalFormatereManglendeKeySomIkkeFunnet() {
+        EnonicStringRetriever retriever = new EnonicStringRetriever(contentRetriever, PATH);
+        assertEquals("<b>[a locale:no_NO, variant:null]</b>", retriever.retrieveFormatted("a", "no_NO", 1));
+    }
+
+    @Test
+    public void skalFormatereTekstFraStringRetrieverUtenEgenFormatering() {
+        StringRetriever retriever = new StringRetriever() {
+            @Override
+            public String retrieveString(String key, String locale) {
+                return retrieveString(key, locale, null);
+            }
+
+            @Override
+            public String retrieveString(String key, String locale, String variant) {
+                return "Du har {0} meldinger fra {1}";
+            }
+        };
+        assertEquals("Du har 3 meldinger fra NAV", retriever.retrieveFormatted("kontaktinfo.antall", "no_NO", 3, "NAV"));
+    }
 }
@@ -28,6 +28,16 @@ public class MessageListenerAdapter implements StringRetriever {
         return value;
     }
 
+    public String retrieveFormatted(String key, String locale, Object... args) {
+        String value = stringRetriever.retrieveFormatted(key, locale, args);
+        if (value != null) {
+            for (MessageListener messageListener : messageListeners) {
+                value = messageListener.onMessageRetrieved(value);
+            }
+        }
+        return value;
+    }
+
     public void setMessageListeners(List<MessageListener> messageListeners) {
         this.messageListeners = messageListeners;
     }
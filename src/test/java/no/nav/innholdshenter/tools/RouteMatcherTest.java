@@ -0,0 +1,54 @@
+package no.nav.innholdshenter.tools;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class RouteMatcherTest {
+
+    private static final List<String> PATTERNS = asList("^/sbl/ag.*", ".*isAlive.*", "/sbl/(ag|arbeid)/sok\\.do", "^/sbl/.*",
+            "/(\\w+)/\\1", "/minside", "/[a-z]+/kategori(er)?/.*", "\\Q/a+b\\E.*");
+
+    private static final List<String> URIS = asList("/sbl/ag/sok.do", "/SBL/AG", "/sbl/arbeid/sok.do", "/sbl/", "/sbl", "/app/isalive",
+            "/foo/foo", "/foo/bar", "/minside", "/MinSide", "/minside/", "/ditt/kategorier/x", "/a+b/c", "", "/sbl/\n");
+
+    @Test
+    public void shouldGiveSameFirstMatchAsCompilingEachPattern() {
+        for (int i = 0; i <= PATTERNS.size(); i++) {
+            List<String> patterns = PATTERNS.subList(i, PATTERNS.size());
+            for (String uri : URIS) {
+                assertThat(patterns + " " + uri, RouteMatcher.matching(patterns).firstMatchingPattern(uri), is(firstMatchOneByOne(patterns, uri)));
+            }
+        }
+    }
+
+    @Test
+    public void shouldFindPatternsAnywhereInUrlCaseSensitive() {
+        List<String> patterns = asList("", "/hjelpetekst/", "sid=[0-9]+");
+
+        assertThat(RouteMatcher.finding(patterns).matches("http://enonic/app/hjelpetekst/x"), is(true));
+        assertThat(RouteMatcher.finding(patterns).matches("http://enonic/app/HJELPETEKST/x"), is(false));
+        assertThat(RouteMatcher.finding(patterns).matches("http://enonic/app?sid=42"), is(true));
+        assertThat(RouteMatcher.finding(patterns).matches("http://enonic/app"), is(false));
+    }
+
+    @Test
+    public void shouldNotMatchAnythingWithoutPatterns() {
+        assertThat(RouteMatcher.matching(asList()).firstMatchingPattern("/minside"), is(nullValue()));
+    }
+
+    private static String firstMatchOneByOne(List<String> patterns, String uri) {
+        for (String pattern : patterns) {
+            if (Pattern.compile(pattern, Pattern.CASE_INSENSITIVE | Pattern.DOTALL).matcher(uri).matches()) {
+                return pattern;
+            }
+        }
+        return null;
+    }
+}